@@ -0,0 +1,106 @@
+package sap.bench;
+
+import java.io.*;
+import java.util.*;
+import sap.Assembler;
+
+/**
+ * Benchmarks for Assembler.assembleFile, which includes writing the listing,
+ * symbol table, and binary image.
+ * @author Ari Zerner
+ */
+class AssemblerBench {
+
+    /**
+     * The sample programs that come with SAP, found in the working directory.
+     */
+    static final String[] BUNDLED = {"chars", "codeprint", "doubles",
+        "power", "gameoflife"};
+
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new AssembleBenchmark("AssemblerBench.bundled") {
+            @Override
+            void writeSources() throws IOException {
+                for (String program : BUNDLED) {
+                    copy(new File(program + ".txt"),
+                            new File(dir, program + ".txt"));
+                    names.add(program);
+                }
+            }
+        });
+        benchmarks.add(new AssembleBenchmark("AssemblerBench.large") {
+            @Override
+            void writeSources() throws IOException {
+                write(new File(dir, "large.txt"), largeSource(2000));
+                names.add("large");
+            }
+        });
+        return benchmarks;
+    }
+
+    private abstract static class AssembleBenchmark extends Benchmark {
+
+        File dir;
+        List<String> names = new ArrayList<String>();
+        private final Assembler assembler = new Assembler();
+
+        AssembleBenchmark(String name) {
+            super(name);
+        }
+
+        abstract void writeSources() throws IOException;
+
+        @Override
+        public void setUp() throws IOException {
+            dir = makeTempDir();
+            writeSources();
+        }
+
+        @Override
+        public Object run() {
+            int errors = 0;
+            for (String name : names) {
+                assembler.assembleFile(new File(dir, name).getPath(), null);
+                errors += assembler.getNumErrors();
+            }
+            if (errors > 0)
+                throw new IllegalStateException("Assembly errors: " + errors);
+            return errors;
+        }
+
+        @Override
+        public void tearDown() {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Generates a program with the given number of subroutines, each a short
+     * loop with labels, jumps both ways, strings, and comments.
+     */
+    static String largeSource(int subroutines) {
+        StringBuilder source = new StringBuilder();
+        source.append("; synthetic benchmark program\n");
+        for (int i = 0; i < subroutines; i++) {
+            source.append("sub").append(i).append(":  movir #10 r1 ; setup\n");
+            source.append("loop").append(i).append(": addir #").append(i)
+                    .append(" r2\n");
+            source.append("        movrm r2 data").append(i).append('\n');
+            source.append("        cmpmr data").append(i).append(" r2\n");
+            source.append("        jmpne skip").append(i).append('\n');
+            source.append("        sojnz r1 loop").append(i).append('\n');
+            source.append("skip").append(i).append(": outs msg")
+                    .append(i).append('\n');
+            source.append("        ret\n");
+            source.append("data").append(i).append(": .integer #0\n");
+            source.append("msg").append(i).append(":  .string \"sub ")
+                    .append(i).append("\"\n");
+        }
+        source.append("main:   jsr sub0\n");
+        source.append("        halt\n");
+        source.append("        .start main\n");
+        source.append("        .end\n");
+        return source.toString();
+    }
+}
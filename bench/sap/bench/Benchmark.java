@@ -0,0 +1,111 @@
+package sap.bench;
+
+import java.io.*;
+
+/**
+ * A single benchmark: something to set up once and then time over and over.
+ * @author Ari Zerner
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    /**
+     * Creates a new Benchmark.
+     * @param name the name reported in the results, such as
+     * "AssemblerBench.bundled"
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of this benchmark.
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Prepares for timing. Not timed.
+     * @throws Exception if the benchmark can't be set up
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Performs one operation. This is what is timed.
+     * @return anything computed, so that the work can't be optimized away
+     * @throws Exception if the operation fails
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Cleans up after timing. Not timed.
+     * @throws Exception if the benchmark can't be cleaned up
+     */
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Makes a new empty temporary directory.
+     * @return the directory
+     * @throws IOException if the directory can't be made
+     */
+    protected static File makeTempDir() throws IOException {
+        File dir = File.createTempFile("sapbench", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Unable to make " + dir);
+        return dir;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     * @param dir the directory
+     */
+    protected static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                delete(file);
+        dir.delete();
+    }
+
+    /**
+     * Writes a string to a file.
+     * @param file the file
+     * @param text the contents
+     * @throws IOException if the file can't be written
+     */
+    protected static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copies a file.
+     * @param from the file to copy
+     * @param to the copy
+     * @throws IOException if the file can't be copied
+     */
+    protected static void copy(File from, File to) throws IOException {
+        byte[] bytes = new byte[(int) from.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(from));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package sap.bench;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks and reports the average time per operation of each.
+ * Every benchmark gets a number of warmup iterations, which aren't recorded,
+ * followed by measurement iterations. An iteration runs operations back to
+ * back for a fixed time. The results are printed as a table and written as
+ * JSON in the layout used by JMH, so that they can be compared with the same
+ * tools.
+ *
+ * Usage: java sap.bench.Benchmarks [-wi n] [-i n] [-r ms] [-rff file]
+ * [pattern...], where -wi and -i set the number of warmup and measurement
+ * iterations, -r sets the length of an iteration, -rff names the JSON file
+ * (default bench-results.json), and only benchmarks whose names match one of
+ * the patterns are run.
+ * @author Ari Zerner
+ */
+public class Benchmarks {
+
+    /**
+     * Keeps the results of benchmark operations reachable.
+     */
+    public static volatile Object sink;
+
+    private int warmupIterations = 5, iterations = 5;
+    private long iterationMillis = 1000;
+
+    private static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(AssemblerBench.benchmarks());
+        benchmarks.addAll(VirtualMachineBench.benchmarks());
+        benchmarks.addAll(SymbolTableBench.benchmarks());
+        return benchmarks;
+    }
+
+    /**
+     * Times one benchmark.
+     * @param benchmark the benchmark
+     * @return the average milliseconds per operation of each measurement
+     * iteration
+     * @throws Exception if the benchmark fails
+     */
+    private double[] measure(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmupIterations; i++)
+                iteration(benchmark);
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++)
+                scores[i] = iteration(benchmark);
+            return scores;
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private double iteration(Benchmark benchmark) throws Exception {
+        long start = System.nanoTime(), end = start + iterationMillis * 1000000;
+        long now, ops = 0;
+        do {
+            sink = benchmark.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        return (now - start) / 1e6 / ops;
+    }
+
+    private static double mean(double[] scores) {
+        double sum = 0;
+        for (double score : scores)
+            sum += score;
+        return sum / scores.length;
+    }
+
+    /**
+     * Returns the half-width of the 99.9% confidence interval of the mean,
+     * using the normal approximation.
+     */
+    private static double error(double[] scores) {
+        if (scores.length < 2) return Double.NaN;
+        double mean = mean(scores), squares = 0;
+        for (double score : scores)
+            squares += (score - mean) * (score - mean);
+        double deviation = Math.sqrt(squares / (scores.length - 1));
+        return 3.291 * deviation / Math.sqrt(scores.length);
+    }
+
+    private String toJson(List<String> names, List<double[]> results) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < names.size(); i++) {
+            double[] scores = results.get(i);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : \"sap.bench.")
+                    .append(names.get(i)).append("\",\n");
+            json.append("        \"mode\" : \"avgt\",\n");
+            json.append("        \"threads\" : 1,\n");
+            json.append("        \"forks\" : 0,\n");
+            json.append("        \"warmupIterations\" : ")
+                    .append(warmupIterations).append(",\n");
+            json.append("        \"warmupTime\" : \"")
+                    .append(iterationMillis).append(" ms\",\n");
+            json.append("        \"measurementIterations\" : ")
+                    .append(iterations).append(",\n");
+            json.append("        \"measurementTime\" : \"")
+                    .append(iterationMillis).append(" ms\",\n");
+            json.append("        \"primaryMetric\" : {\n");
+            json.append("            \"score\" : ").append(number(mean(scores)))
+                    .append(",\n");
+            json.append("            \"scoreError\" : ")
+                    .append(number(error(scores))).append(",\n");
+            json.append("            \"scoreUnit\" : \"ms/op\",\n");
+            json.append("            \"rawData\" : [\n                [\n");
+            for (int j = 0; j < scores.length; j++)
+                json.append("                    ").append(number(scores[j]))
+                        .append(j < scores.length - 1 ? ",\n" : "\n");
+            json.append("                ]\n            ]\n        }\n    }")
+                    .append(i < names.size() - 1 ? ",\n" : "\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : Double.toString(value);
+    }
+
+    /**
+     * Runs the benchmarks.
+     * @param args the command line arguments
+     * @throws Exception if a benchmark fails or the results can't be written
+     */
+    public static void main(String[] args) throws Exception {
+        Benchmarks runner = new Benchmarks();
+        String resultFile = "bench-results.json";
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-wi"))
+                runner.warmupIterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-i"))
+                runner.iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-r"))
+                runner.iterationMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-rff"))
+                resultFile = args[++i];
+            else
+                patterns.add(Pattern.compile(args[i]));
+        }
+        List<String> names = new ArrayList<String>();
+        List<double[]> results = new ArrayList<double[]>();
+        System.out.println(String.format("%-40s %12s %12s", "Benchmark",
+                "Score", "Error"));
+        for (Benchmark benchmark : all()) {
+            boolean selected = patterns.isEmpty();
+            for (Pattern pattern : patterns)
+                selected |= pattern.matcher(benchmark.getName()).find();
+            if (!selected) continue;
+            double[] scores = runner.measure(benchmark);
+            names.add(benchmark.getName());
+            results.add(scores);
+            System.out.println(String.format("%-40s %12.4f %12.4f  ms/op",
+                    benchmark.getName(), mean(scores), error(scores)));
+        }
+        PrintStream json = new PrintStream(new FileOutputStream(resultFile));
+        json.print(runner.toJson(names, results));
+        json.close();
+        System.out.println("Results written to " + resultFile);
+    }
+}
@@ -0,0 +1,62 @@
+package sap.bench;
+
+import java.util.*;
+import sap.SymbolTable;
+
+/**
+ * Benchmarks for SymbolTable lookups and for the sorted lists that are
+ * written to the listing and the .sym file.
+ * @author Ari Zerner
+ */
+class SymbolTableBench {
+
+    private static final int SYMBOLS = 5000;
+
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new TableBenchmark("SymbolTableBench.getAddress") {
+            @Override
+            public Object run() {
+                int sum = 0;
+                for (String label : labels)
+                    sum += table.getAddress(label);
+                return sum;
+            }
+        });
+        benchmarks.add(new TableBenchmark("SymbolTableBench.getLabel") {
+            @Override
+            public Object run() {
+                int length = 0;
+                for (int i = 0; i < SYMBOLS; i++)
+                    length += table.getLabel(i * 3).length();
+                return length;
+            }
+        });
+        benchmarks.add(new TableBenchmark(
+                "SymbolTableBench.alphabeticalList") {
+            @Override
+            public Object run() {
+                return table.asAlphabeticalList();
+            }
+        });
+        return benchmarks;
+    }
+
+    private abstract static class TableBenchmark extends Benchmark {
+
+        final SymbolTable table = new SymbolTable();
+        final String[] labels = new String[SYMBOLS];
+
+        TableBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() {
+            for (int i = 0; i < SYMBOLS; i++) {
+                labels[i] = "Label" + i;
+                table.addSymbol(labels[i], i * 3);
+            }
+        }
+    }
+}
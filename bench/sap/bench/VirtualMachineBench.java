@@ -0,0 +1,209 @@
+package sap.bench;
+
+import java.io.*;
+import java.util.*;
+import sap.*;
+
+/**
+ * Benchmarks for loading and running programs on VirtualMachine. Output is
+ * sent to a sink that throws it away, so that only the engine is measured.
+ * @author Ari Zerner
+ */
+class VirtualMachineBench {
+
+    private static final OutputSink NULL_SINK = new OutputSink() {
+        public void write(char[] chars, int offset, int length) {
+        }
+    };
+
+    /**
+     * Nested loops of register arithmetic.
+     */
+    static final String ARITHMETIC =
+            "total:  .integer #0\n"
+            + "go:     movir #2000 r1\n"
+            + "outer:  movir #1000 r2\n"
+            + "inner:  addir #3 r3\n"
+            + "        mulir #5 r3\n"
+            + "        subrr r2 r3\n"
+            + "        cmpir #0 r2\n"
+            + "        sojnz r2 inner\n"
+            + "        sojnz r1 outer\n"
+            + "        movrm r3 total\n"
+            + "        printi r3\n"
+            + "        halt\n"
+            + "        .start go\n";
+
+    /**
+     * The sieve of Eratosthenes, which is mostly indirect memory access.
+     */
+    static final String SIEVE =
+            "size:   .integer #50000\n"
+            + "go:     movir #2 r1\n"
+            + "        clrr r4\n"
+            + "next:   movar sieve r2\n"
+            + "        addrr r1 r2\n"
+            + "        movxr r2 r3\n"
+            + "        cmpir #0 r3\n"
+            + "        jmpne skip\n"
+            + "        addir #1 r4\n"
+            + "        movrr r1 r5\n"
+            + "        addrr r1 r5\n"
+            + "        movir #1 r6\n"
+            + "cross:  cmpmr size r5\n"
+            + "        jmpp skip\n"
+            + "        jmpz skip\n"
+            + "        movar sieve r2\n"
+            + "        addrr r5 r2\n"
+            + "        movrx r6 r2\n"
+            + "        addrr r1 r5\n"
+            + "        jmp cross\n"
+            + "skip:   addir #1 r1\n"
+            + "        cmpmr size r1\n"
+            + "        jmpn next\n"
+            + "        printi r4\n"
+            + "        halt\n"
+            + "        .start go\n"
+            + "sieve:  .allocate #50000\n";
+
+    /**
+     * Recursive Fibonacci numbers, which exercises jsr, ret, and the stack.
+     */
+    static final String CALLS =
+            "fib:    cmpir #2 r5\n"
+            + "        jmpn base\n"
+            + "        subir #1 r5\n"
+            + "        jsr fib\n"
+            + "        push r0\n"
+            + "        subir #1 r5\n"
+            + "        jsr fib\n"
+            + "        pop r1\n"
+            + "        addrr r1 r0\n"
+            + "        ret\n"
+            + "base:   movrr r5 r0\n"
+            + "        ret\n"
+            + "go:     movir #20 r5\n"
+            + "        jsr fib\n"
+            + "        printi r0\n"
+            + "        halt\n"
+            + "        .start go\n";
+
+    /**
+     * Block operations on 5000-word blocks: 200 rounds of movb, clrb, an
+     * overlapping movb, and outcb, which is 4 million words in all.
+     */
+    static final String BLOCKS =
+            "go:     movir #200 r9\n"
+            + "        movir #5000 r3\n"
+            + "        movir #4999 r4\n"
+            + "round:  movar from r1\n"
+            + "        movar to r2\n"
+            + "        movb r1 r2 r3\n"
+            + "        clrb r2 r3\n"
+            + "        movar to r2\n"
+            + "        addir #1 r2\n"
+            + "        movb r1 r2 r4\n"
+            + "        outcb r1 r3\n"
+            + "        sojnz r9 round\n"
+            + "        halt\n"
+            + "        .start go\n"
+            + "from:   .allocate #5000\n"
+            + "to:     .allocate #5000\n";
+
+    /**
+     * A program that halts immediately but has a lot of memory to load.
+     */
+    static final String LARGE_IMAGE =
+            "go:     halt\n"
+            + "        .start go\n"
+            + "space:  .allocate #90000\n";
+
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new RunBenchmark("VirtualMachineBench.loadProgram",
+                "image", LARGE_IMAGE));
+        benchmarks.add(new Benchmark("VirtualMachineBench.readImage") {
+            private File dir;
+            private final int[] memory = new int[100000];
+
+            @Override
+            public void setUp() throws IOException {
+                dir = assemble("image", LARGE_IMAGE);
+            }
+
+            @Override
+            public Object run() throws IOException {
+                BinaryImage image =
+                        BinaryImage.read(new File(dir, "image.bin"));
+                image.copyTo(memory);
+                return image.getSize();
+            }
+
+            @Override
+            public void tearDown() {
+                delete(dir);
+            }
+        });
+        benchmarks.add(new RunBenchmark("VirtualMachineBench.arithmetic",
+                "arithmetic", ARITHMETIC));
+        benchmarks.add(new RunBenchmark("VirtualMachineBench.sieve",
+                "sieve", SIEVE));
+        benchmarks.add(new RunBenchmark("VirtualMachineBench.calls",
+                "calls", CALLS));
+        benchmarks.add(new RunBenchmark("VirtualMachineBench.blocks",
+                "blocks", BLOCKS));
+        benchmarks.add(new RunBenchmark("VirtualMachineBench.gameoflife",
+                "gameoflife", null));
+        return benchmarks;
+    }
+
+    /**
+     * Assembles a program in a new temporary directory.
+     * @param name the name of the program
+     * @param source the source, or null to use the bundled program
+     * @return the directory
+     */
+    static File assemble(String name, String source) throws IOException {
+        File dir = Benchmark.makeTempDir();
+        File txt = new File(dir, name + ".txt");
+        if (source == null) Benchmark.copy(new File(name + ".txt"), txt);
+        else Benchmark.write(txt, source);
+        if (!new Assembler().assembleFile(new File(dir, name).getPath(), null))
+            throw new IOException("Unable to assemble " + name);
+        return dir;
+    }
+
+    /**
+     * Loads and runs a program from start to finish.
+     */
+    private static class RunBenchmark extends Benchmark {
+
+        private final String program, source;
+        private final VirtualMachine vm = new VirtualMachine(100000);
+        private File dir;
+
+        RunBenchmark(String name, String program, String source) {
+            super(name);
+            this.program = program;
+            this.source = source;
+        }
+
+        @Override
+        public void setUp() throws IOException {
+            dir = assemble(program, source);
+            vm.setOutput(NULL_SINK);
+        }
+
+        @Override
+        public Object run() {
+            vm.setInput(new ByteArrayInputStream("\n".getBytes()));
+            vm.runBytecodeFile(new File(dir, program).getPath(), false);
+            return vm.getInstructionCount();
+        }
+
+        @Override
+        public void tearDown() {
+            delete(dir);
+        }
+    }
+}
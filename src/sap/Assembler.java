@@ -5,7 +5,8 @@ import java.util.*;
 import static sap.Language.*;
 
 /**
- * Assembles a SAP source file. Assembler is not thread safe.
+ * Assembles SAP source code. An Assembler is not thread safe, but
+ * assemble(String) is, as is using a separate Assembler in each thread.
  * @author Ari Zerner
  */
 public class Assembler {
@@ -13,12 +14,37 @@ public class Assembler {
     private int lineNumber, numErrors, prgmStart;
     private String errorMess = "No program assembled.";
     private SymbolTable symTable;
-    private Vector<Integer> prgm, prgmBuffer;
-    private boolean end, error = true;
+    private boolean end, error = true, writeListing = true;
     private Vector<String> duplicates;
+    private List<AssemblyResult.Diagnostic> diagnostics;
+
+    /*
+     * The program is assembled in a single pass over the source. Each line's
+     * words go into code as soon as it is parsed, with 0 in place of any
+     * label it uses, and the label is recorded as a fixup: the line, the
+     * offset of the word within the line, or START for the label of .start,
+     * and the label itself. Once every label is known, the fixups are
+     * patched in and the listing is written. A line that uses a label that
+     * was never defined is then an error, but, as its words were already
+     * counted, the labels after it keep the addresses they were given.
+     */
+    private static final int START = -1;
+    private static final String IMPLICIT_END = ".end ;implicit";
+    private static final int MARGIN = 36; // space before a listing's lines
+    private char[] text; // the source, followed by IMPLICIT_END
+    private int[] code;
+    private int codeSize;
+    private int[] lineStarts, lineEnds; // trimmed, for the listing
+    private int[] lineCode; // where the line's words start in code
+    private int[] lineFixups; // index of the line's first fixup
+    private String[] lineErrors;
+    private int numLines;
+    private int[] fixupLines, fixupOffsets;
+    private String[] fixupLabels;
+    private int numFixups;
     /**
      * Convenience field to eliminate the need to instantiate a new Assembler.
-     * If this is used by more than one thread
+     * It must not be used by more than one thread at a time.
      */
     public static final Assembler ASM = new Assembler();
     
@@ -46,6 +72,51 @@ public class Assembler {
         return errorMess;
     }
 
+    /**
+     * Assembles SAP source code without reading or writing any files. Each
+     * call has its own state, so any number of threads may assemble at once.
+     * @param source the source code
+     * @param listing whether to generate a listing
+     * @return the program, its symbols, and its errors
+     */
+    public static AssemblyResult assemble(String source, boolean listing) {
+        char[] text = new char[source.length() + IMPLICIT_END.length()];
+        source.getChars(0, source.length(), text, 0);
+        IMPLICIT_END.getChars(0, IMPLICIT_END.length(), text,
+                source.length());
+        Assembler asm = new Assembler();
+        StringWriter lst = listing ? new StringWriter() : null;
+        String symbols;
+        try {
+            symbols = asm.assemble(text, lst);
+        } catch (IOException exc) { // a StringWriter doesn't throw these
+            throw new IllegalStateException(exc);
+        }
+        return new AssemblyResult(Arrays.copyOf(asm.code, asm.codeSize),
+                asm.prgmStart, asm.symTable, symbols, asm.diagnostics,
+                lst == null ? null : lst.toString());
+    }
+
+    /**
+     * Assembles SAP source code, with a listing, without reading or writing
+     * any files. Equivalent to calling assemble(source, true).
+     * @param source the source code
+     * @return the program, its symbols, its errors, and its listing
+     */
+    public static AssemblyResult assemble(String source) {
+        return assemble(source, true);
+    }
+
+    /**
+     * Sets whether assembleFile writes a listing. When it doesn't, no .lst
+     * file is written and no listing is displayed, which saves time on large
+     * programs whose listings no one reads. Listings are written by default.
+     * @param writeListing true to write listings
+     */
+    public void setListing(boolean writeListing) {
+        this.writeListing = writeListing;
+    }
+
     /**
      * Assembles a SAP source file. Generates three files: a .bin file with the
      * assembled code, a .lst file with a listing of the assembly, and a .sym
@@ -63,12 +134,15 @@ public class Assembler {
      * Assembles a SAP source file. Generates three files: a .bin file with the
      * assembled code, a .lst file with a listing of the assembly, and a .sym
      * file with the symbol table. The source code should be in a .txt file.
+     * The listing is written to the .lst file, and displayed, as it is
+     * generated, unless listings have been turned off with setListing.
      * @param fn the name of the .txt file
      * @param out the PrintStream to which to display messages. Can be set to
      * null to signify that messages shouldn't be printed
      * @return true if and only if a bin file was created (there were no errors)
      */
     public boolean assembleFile(String fn, PrintStream out) {
+        boolean echo = out != null;
         if (out == null) {
             out = new PrintStream(new OutputStream() {
 
@@ -77,93 +151,67 @@ public class Assembler {
                 }
             });
         }
-        Scanner txt = null, txt2 = null;
         errorMess = "No errors.";
+        char[] source;
         try {
-            txt = new Scanner(new FileInputStream(fn + ".txt"));
-            txt2 = new Scanner(new FileInputStream(fn + ".txt"));
-        } catch (FileNotFoundException exc) {
+            source = readSource(new File(fn + ".txt"), IMPLICIT_END);
+        } catch (IOException exc) {
             errorMess = "Error finding or reading " + fn + ".txt";
             out.println(errorMess);
             error = true;
             return false;
         }
-        String listing = "";
-        symTable = new SymbolTable();
-        duplicates = new Vector<String>();
-        lineNumber = 0;
-        numErrors = 0;
-        prgm = new Vector<Integer>();
-        end = false;
-        if (txt.hasNext()) { // account for empty file
-            while (!end && txt.hasNextLine()) {
-                assembleForLabel(txt.nextLine());
-            }
-            txt.close();
-            if (!duplicates.isEmpty()) {
-                listing += "Error! Duplicate label";
-                if (duplicates.size() > 1) {
-                    listing += "s";
-                }
-                listing += ": ";
-                Iterator<String> dups = duplicates.iterator();
-                while (dups.hasNext()) {
-                    listing += dups.next();
-                    if (dups.hasNext()) {
-                        listing += ", ";
-                    }
-                }
-                listing += "\n\n";
-            }
-            lineNumber = 0;
-            prgm = new Vector<Integer>();
-            end = false;
+        boolean isBadFile = false;
+        ListingWriter lst = null;
+        if (writeListing) {
+            Writer file = null;
             try {
-                while (!end) {
-                    listing += assembleLine(txt2.nextLine());
-                }
-            } catch (NoSuchElementException exc) {
-                listing += assembleLine(".end ;implicit");
+                file = new OutputStreamWriter(new FileOutputStream(fn
+                        + ".lst"));
+            } catch (FileNotFoundException exc) {
+                isBadFile = true;
             }
-            txt2.close();
-            listing += "\nSymbol Table:\n";
-            listing += symTable.asAlphabeticalList();
-            listing += "\nNumber Assembly Errors: " + numErrors;
+            lst = new ListingWriter(file, echo ? out : null);
         }
-        out.println(listing);
-        boolean isBadFile = false;
-        PrintStream lst, sym, bin = null;
+        String symbols = "";
+        try {
+            symbols = assemble(source, lst == null ? null
+                    : new BufferedWriter(lst, 1 << 16));
+        } catch (IOException exc) {
+            isBadFile = true;
+        }
+        if (lst != null) {
+            isBadFile |= lst.failed;
+            out.println();
+        }
+        PrintStream sym;
         try {
-            lst = new PrintStream(new FileOutputStream(fn + ".lst"));
-            lst.print(listing);
-            lst.close();
+            sym = new PrintStream(new FileOutputStream(fn + ".sym"));
+            sym.print(symbols);
+            sym.close();
         } catch (FileNotFoundException exc) {
             isBadFile = true;
         } finally {
             try {
-                sym = new PrintStream(new FileOutputStream(fn + ".sym"));
-                sym.print(symTable.asAlphabeticalList());
-                sym.close();
-            } catch (FileNotFoundException exc) {
-                isBadFile = true;
-            } finally {
-                try {
-                    if (numErrors == 0) {
-                        bin = new PrintStream(
-                                new FileOutputStream(fn + ".bin"));
-                        bin.println(prgm.size());
-                        bin.println(prgmStart);
-                        Iterator code = prgm.iterator();
-                        while (code.hasNext()) {
-                            bin.println(code.next());
-                        }
-                        bin.close();
-                    }
-                } catch (FileNotFoundException exc) {
-                    isBadFile = true;
+                if (numErrors == 0) {
+                    BinaryImage.write(new File(fn + ".bin"), prgmStart,
+                            code, codeSize, symbols);
                 }
+            } catch (IOException exc) {
+                isBadFile = true;
             }
         }
+        text = null; // let the source and the per-line records go
+        code = null;
+        lineStarts = null;
+        lineEnds = null;
+        lineCode = null;
+        lineFixups = null;
+        lineErrors = null;
+        fixupLines = null;
+        fixupOffsets = null;
+        fixupLabels = null;
+        diagnostics = null;
         if (isBadFile) {
             errorMess = "Error creating one or more assembled files.";
             out.println(errorMess);
@@ -180,204 +228,421 @@ public class Assembler {
         return false;
     }
 
-    private void assembleForLabel(String line) {
-        line = line.trim();
-        if (line.isEmpty()) {
-            return;
+    /**
+     * Assembles source code into this Assembler's fields and writes its
+     * listing.
+     * @param text the source code, followed by IMPLICIT_END
+     * @param listing where to write the listing, or null to write none. It is
+     * closed when the listing is finished
+     * @return the symbols, in the format of a .sym file
+     */
+    private String assemble(char[] text, Writer listing) throws IOException {
+        this.text = text;
+        String symbols = "";
+        symTable = new SymbolTable();
+        duplicates = new Vector<String>();
+        diagnostics = new ArrayList<AssemblyResult.Diagnostic>();
+        lineNumber = 0;
+        numErrors = 0;
+        code = new int[256];
+        codeSize = 0;
+        lineStarts = new int[64];
+        lineEnds = new int[64];
+        lineCode = new int[64];
+        lineFixups = new int[64];
+        lineErrors = new String[64];
+        numLines = 0;
+        fixupLines = new int[64];
+        fixupOffsets = new int[64];
+        fixupLabels = new String[64];
+        numFixups = 0;
+        end = false;
+        int sourceEnd = text.length - IMPLICIT_END.length();
+        Lexer lex = new Lexer(text, 0, sourceEnd);
+        if (lex.hasToken()) { // account for empty file
+            while (!end) {
+                if (!lex.nextLine()) {
+                    lex = new Lexer(text, sourceEnd, text.length);
+                    lex.nextLine();
+                    assembleLine(lex);
+                    break;
+                }
+                assembleLine(lex);
+            }
+            symbols = symTable.asAlphabeticalList();
+            if (listing != null && !duplicates.isEmpty()) {
+                listing.write("Error! Duplicate label");
+                if (duplicates.size() > 1) {
+                    listing.write("s");
+                }
+                listing.write(": ");
+                Iterator<String> dups = duplicates.iterator();
+                while (dups.hasNext()) {
+                    listing.write(dups.next());
+                    if (dups.hasNext()) {
+                        listing.write(", ");
+                    }
+                }
+                listing.write("\n\n");
+            }
+            resolve(listing);
+            if (listing != null) {
+                listing.write("\nSymbol Table:\n");
+                listing.write(symbols);
+                listing.write("\nNumber Assembly Errors: " + numErrors);
+            }
+            Collections.sort(diagnostics,
+                    new Comparator<AssemblyResult.Diagnostic>() {
+                public int compare(AssemblyResult.Diagnostic d1,
+                        AssemblyResult.Diagnostic d2) {
+                    return d1.getLine() < d2.getLine() ? -1
+                            : d1.getLine() == d2.getLine() ? 0 : 1;
+                }
+            });
+        }
+        if (listing != null) {
+            listing.close();
         }
-        prgmBuffer = new Vector<Integer>(4);
+        return symbols;
+    }
+
+    /**
+     * Reads a whole source file in the platform's default encoding.
+     * @param tail text to put after the source
+     * @return the source followed by tail, filling the whole array
+     */
+    private static char[] readSource(File file, String tail)
+            throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file));
         try {
-            line = removeComment(line);
-            line = extractLabel(line);
-            parseCommand(line, true);
-            prgm.addAll(prgmBuffer);
-        } catch (Exception exc) {
+            char[] text = new char[(int) Math.min(file.length(),
+                    Integer.MAX_VALUE - 8) + tail.length() + 1];
+            int length = 0;
+            int count;
+            while ((count = in.read(text, length, text.length - length))
+                    >= 0) {
+                length += count;
+                if (length == text.length) {
+                    text = Arrays.copyOf(text, length * 2);
+                }
+            }
+            text = Arrays.copyOf(text, length + tail.length());
+            tail.getChars(0, tail.length(), text, length);
+            return text;
+        } finally {
+            in.close();
         }
-        lineNumber++;
     }
 
     /**
-     * Assembles a line of code.
-     * @param line the line of code
-     * @return what to add to the listing file
+     * Assembles the line the lexer is on, defining its label and adding its
+     * words to the program. Labels it uses are left as fixups.
      */
-    private String assembleLine(String line) {
-        line = line.trim();
-        if (line.isEmpty()) {
-            return lineNumber++ + "\n";
+    private void assembleLine(Lexer lex) {
+        if (numLines == lineStarts.length) {
+            int size = numLines * 2;
+            lineStarts = Arrays.copyOf(lineStarts, size);
+            lineEnds = Arrays.copyOf(lineEnds, size);
+            lineCode = Arrays.copyOf(lineCode, size);
+            lineFixups = Arrays.copyOf(lineFixups, size);
+            lineErrors = Arrays.copyOf(lineErrors, size);
+        }
+        lineStarts[numLines] = lex.lineStart();
+        lineEnds[numLines] = lex.lineEnd();
+        lineCode[numLines] = codeSize;
+        lineFixups[numLines] = numFixups;
+        lineErrors[numLines] = null;
+        if (lex.isBlank()) {
+            numLines++;
+            return;
         }
-        String lstBuffer = lineNumber++ + " ";
-        String fullLine = line;
-        prgmBuffer = new Vector<Integer>(4);
         try {
-            line = removeComment(line);
-            line = removeLabel(line);
-            parseCommand(line, false);
-            lstBuffer += prgm.size() + ": ";
-            Iterator prgmAdd = prgmBuffer.iterator();
-            while (prgmAdd.hasNext()) {
-                lstBuffer += " " + prgmAdd.next();
+            if (lex.next() == Lexer.LABEL) {
+                String label = lex.text();
+                if (symTable.addSymbol(label, codeSize)) {
+                    label = label.trim().toLowerCase();
+                    duplicates.add(label + " in line " + lineNumber);
+                    diagnostics.add(new AssemblyResult.Diagnostic(numLines,
+                            "Duplicate label " + label + "."));
+                    numErrors++;
+                }
+                lex.next();
             }
-            prgm.addAll(prgmBuffer);
+            parseCommand(lex);
         } catch (Exception exc) {
-            lstBuffer += "Error: " + exc.getMessage();
-            numErrors++;
-        }
-        int lstLength = 36; // the amount of space before the line
-        if (lstBuffer.length() > lstLength) {
-            lstBuffer = lstBuffer.substring(0, lstLength);
-            lstBuffer = lstBuffer.substring(0, lstBuffer.lastIndexOf(' '));
+            // an error with no message is still an error, shown as null
+            lineErrors[numLines] = String.valueOf(exc.getMessage());
+            codeSize = lineCode[numLines]; // the line's words are dropped
         }
-        while (lstBuffer.length() < lstLength) {
-            lstBuffer += " ";
-        }
-        lstBuffer += fullLine;
-        return lstBuffer + '\n';
+        numLines++;
+        lineNumber++; // only lines with something on them are counted here
     }
 
-    private String removeComment(String line) {
-        int commentStart = line.indexOf(';');
-        if (commentStart > -1) {
-            return line.substring(0, commentStart);
+    /**
+     * Adds a word to the program.
+     */
+    private void emit(int word) {
+        if (codeSize == code.length) {
+            code = Arrays.copyOf(code, codeSize * 2);
         }
-        return line;
+        code[codeSize++] = word;
     }
 
-    private String removeLabel(String line) {
-        int labelEnd = line.indexOf(':');
-        if (labelEnd > -1) {
-            try {
-                return line.substring(labelEnd + 1);
-            } catch (StringIndexOutOfBoundsException exc) {
-                throw new RuntimeException("Blank label");
-            }
+    /**
+     * Records a label used by the line being assembled.
+     * @param offset the offset of the word within the line, or START
+     */
+    private void addFixup(int offset, String label) {
+        if (numFixups == fixupLabels.length) {
+            int size = numFixups * 2;
+            fixupLines = Arrays.copyOf(fixupLines, size);
+            fixupOffsets = Arrays.copyOf(fixupOffsets, size);
+            fixupLabels = Arrays.copyOf(fixupLabels, size);
         }
-        return line;
+        fixupLines[numFixups] = numLines;
+        fixupOffsets[numFixups] = offset;
+        fixupLabels[numFixups] = label;
+        numFixups++;
     }
 
-    private String extractLabel(String line) {
-        int labelEnd = line.indexOf(':');
-        if (labelEnd > -1) {
-            String label = line.substring(0, labelEnd);
-            if (symTable.addSymbol(label, prgm.size())) {
-                duplicates.add(label.trim().toLowerCase()
-                        + " in line " + lineNumber);
+    /**
+     * Patches the labels used by each line into the program and writes the
+     * line to the listing. Lines that use undefined labels are errors, and
+     * their words are left out of the addresses shown for the lines after
+     * them, as they are left out of the program.
+     * @param listing where to write the listing, or null to write none
+     */
+    private void resolve(Writer listing) throws IOException {
+        int dropped = 0; // words of lines with undefined labels so far
+        StringBuilder line = new StringBuilder(MARGIN * 2);
+        char[] margin = new char[MARGIN];
+        for (int i = 0; i < numLines; i++) {
+            if (lineStarts[i] == lineEnds[i]) {
+                if (listing != null) {
+                    listing.write(Integer.toString(i));
+                    listing.write('\n');
+                }
+                continue;
+            }
+            String message = lineErrors[i];
+            int last = i + 1 < numLines ? lineFixups[i + 1] : numFixups;
+            for (int f = lineFixups[i]; f < last; f++) {
+                Integer address = symTable.getAddress(fixupLabels[f]);
+                if (address == null) {
+                    message = "Unrecognized label.";
+                    break;
+                }
+                if (fixupOffsets[f] == START) {
+                    prgmStart = address;
+                } else if (message == null) {
+                    code[lineCode[i] + fixupOffsets[f]] = address;
+                }
+            }
+            int wordsEnd = i + 1 < numLines ? lineCode[i + 1] : codeSize;
+            if (message != null) {
+                diagnostics.add(new AssemblyResult.Diagnostic(i, message));
                 numErrors++;
+                dropped += wordsEnd - lineCode[i];
+            }
+            if (listing == null) {
+                continue;
+            }
+            line.setLength(0);
+            line.append(i).append(' ');
+            if (message == null) {
+                line.append(lineCode[i] - dropped).append(": ");
+                // words past the margin would be cut off anyway
+                for (int w = lineCode[i]; w < wordsEnd
+                        && line.length() <= MARGIN; w++) {
+                    line.append(' ').append(code[w]);
+                }
+            } else {
+                line.append("Error: ").append(message);
+            }
+            if (line.length() > MARGIN) {
+                line.setLength(MARGIN);
+                line.setLength(line.lastIndexOf(" "));
+            }
+            while (line.length() < MARGIN) {
+                line.append(' ');
             }
-            return line.substring(labelEnd + 1);
+            line.getChars(0, MARGIN, margin, 0);
+            listing.write(margin);
+            listing.write(text, lineStarts[i], lineEnds[i] - lineStarts[i]);
+            listing.write('\n');
         }
-        return line;
     }
 
-    private void parseCommand(String line, boolean ignoreLabels) {
-        line = line.trim();
-        if (line.isEmpty()) {
+    /**
+     * Parses the code of the line the lexer is on, whose first token the
+     * lexer has already read.
+     */
+    private void parseCommand(Lexer lex) {
+        if (!lex.hasCode()) {
             return;
         }
-        Scanner scan = new Scanner(line);
-        String command = scan.next().toLowerCase();
+        int kind = lex.kind();
+        if (kind == Lexer.END || kind == Lexer.COMMENT) {
+            throw new NoSuchElementException(); // code of other whitespace
+        }
+        int lineStart = codeSize;
         try {
-            Integer byteCode = getByteCode(command);
-            if (byteCode != null) {
-                prgmBuffer.add(byteCode);
-                for (int pt : getParamTypes(command)) {
+            if (kind == Lexer.MNEMONIC) {
+                int byteCode = lex.value();
+                emit(byteCode);
+                for (int pt : getParamTypes(byteCode)) {
+                    nextArgument(lex);
                     switch (pt) {
                         case REGISTER:
-                            prgmBuffer.add(parseRegister(scan.next()));
+                        case INDIRECT:
+                            emit(argument(lex, Lexer.REGISTER));
                             break;
                         case IMMEDIATE:
-                            prgmBuffer.add(parseImmediate(scan.next()));
+                            emit(argument(lex, Lexer.IMMEDIATE));
                             break;
                         case LABEL:
-                            if (ignoreLabels) {
-                                prgmBuffer.add(0);
-                                scan.next();
-                            } else {
-                                prgmBuffer.add(parseLabel(scan.next()));
-                            }
-                            break;
-                        case INDIRECT:
-                            prgmBuffer.add(parseIndirect(scan.next()));
+                            addFixup(codeSize - lineStart, lex.text());
+                            emit(0);
                             break;
                     }
                 }
-            } else if (command.equals(".start")) {
-                if (!ignoreLabels) {
-                    prgmStart = parseLabel(scan.next());
-                }
-            } else if (command.equals(".end")) {
+            } else if (kind != Lexer.DIRECTIVE) {
+                throw new RuntimeException("Unrecognized command.");
+            } else if (lex.value() == Lexer.DOT_START) {
+                nextArgument(lex);
+                addFixup(START, lex.text());
+            } else if (lex.value() == Lexer.DOT_END) {
                 end = true;
-            } else if (command.equals(".integer")) {
-                prgmBuffer.add(parseImmediate(scan.next()));
-            } else if (command.equals(".allocate")) {
-                int allocSize = parseImmediate(scan.next());
-                prgmBuffer.ensureCapacity(allocSize);
+            } else if (lex.value() == Lexer.DOT_INTEGER) {
+                nextArgument(lex);
+                emit(argument(lex, Lexer.IMMEDIATE));
+            } else if (lex.value() == Lexer.DOT_ALLOCATE) {
+                nextArgument(lex);
+                int allocSize = argument(lex, Lexer.IMMEDIATE);
+                if (allocSize > 0 && codeSize + allocSize > code.length) {
+                    code = Arrays.copyOf(code, Math.max(code.length * 2,
+                            codeSize + allocSize));
+                }
                 for (int i = 0; i < allocSize; i++) {
-                    prgmBuffer.add(0);
+                    code[codeSize++] = 0;
+                }
+            } else { // .string
+                if (lex.rest() != Lexer.STRING) {
+                    throw new NoSuchElementException();
                 }
-            } else if (command.equals(".string")) {
-                String str = parseString(scan.nextLine());
-                prgmBuffer.add(str.length());
+                String str = parseString(lex.text());
+                emit(str.length());
                 for (int i = 0; i < str.length(); i++) {
-                    prgmBuffer.add((int) str.charAt(i));
+                    emit(str.charAt(i));
                 }
-            } else {
-                throw new RuntimeException("Unrecognized command.");
             }
         } catch (NoSuchElementException exc) {
             throw new RuntimeException("Not enough arguments.");
         }
-        if (scan.hasNext()) {
+        kind = lex.next();
+        if (kind != Lexer.END && kind != Lexer.COMMENT) {
             throw new RuntimeException("Too many arguments.");
         }
     }
 
-    private int parseRegister(String param) {
-        try {
-            if (!param.startsWith("r")) {
-                throw new Exception();
-            }
-            return Integer.parseInt(param.substring(1));
-        } catch (Exception exc) {
-            throw new RuntimeException("Bad argument (" + param + ").");
+    /**
+     * Moves the lexer to the next argument of a command.
+     * @throws NoSuchElementException if there are no more arguments
+     */
+    private static void nextArgument(Lexer lex) {
+        int kind = lex.next();
+        if (kind == Lexer.END || kind == Lexer.COMMENT) {
+            throw new NoSuchElementException();
         }
     }
 
-    private int parseImmediate(String param) {
-        try {
-            if (!param.startsWith("#")) {
-                throw new Exception();
-            }
-            return Integer.parseInt(param.substring(1));
-        } catch (Exception exc) {
-            throw new RuntimeException("Bad argument (" + param + ").");
+    /**
+     * Returns the value of the argument the lexer is on, which must be of
+     * the given kind of token.
+     */
+    private static int argument(Lexer lex, int kind) {
+        if (lex.kind() != kind) {
+            throw new RuntimeException("Bad argument (" + lex.text() + ").");
         }
+        return lex.value();
     }
 
-    private int parseLabel(String param) {
-        try {
-            return symTable.getAddress(param);
-        } catch (Exception exc) {
-            throw new RuntimeException("Unrecognized label.");
+    private String parseString(String param) {
+        param = param.trim();
+        if (!(param.startsWith("\"") && param.endsWith("\""))) {
+            throw new RuntimeException("String must be in quotes.");
         }
+        return param.substring(1, param.length() - 1);
     }
 
-    private int parseIndirect(String param) {
-        try {
-            if (!param.startsWith("r")) {
-                throw new Exception();
+    /**
+     * Writes a listing to a .lst file and displays it at the same time. If
+     * the file can't be written, the rest of the listing is still displayed.
+     */
+    private static class ListingWriter extends Writer {
+
+        private Writer file;
+        private final PrintStream out;
+        private boolean failed;
+
+        /**
+         * Creates a new ListingWriter.
+         * @param file the .lst file, or null if it couldn't be opened
+         * @param out where to display the listing, or null to display none
+         */
+        ListingWriter(Writer file, PrintStream out) {
+            this.file = file;
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            if (file != null) {
+                try {
+                    file.write(chars, offset, length);
+                } catch (IOException exc) {
+                    fail();
+                }
+            }
+            if (out != null) {
+                out.print(new String(chars, offset, length));
             }
-            return Integer.parseInt(param.substring(1));
-        } catch (Exception exc) {
-            throw new RuntimeException("Bad argument (" + param + ").");
         }
-    }
 
-    private String parseString(String param) {
-        param = param.trim();
-        if (!(param.startsWith("\"") && param.endsWith("\""))) {
-            throw new RuntimeException("String must be in quotes.");
+        @Override
+        public void flush() {
+            if (file != null) {
+                try {
+                    file.flush();
+                } catch (IOException exc) {
+                    fail();
+                }
+            }
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException exc) {
+                    failed = true;
+                }
+                file = null;
+            }
+        }
+
+        private void fail() {
+            failed = true;
+            try {
+                file.close();
+            } catch (IOException exc) {
+            }
+            file = null;
         }
-        return param.substring(1, param.length() - 1);
     }
-}
\ No newline at end of file
+}
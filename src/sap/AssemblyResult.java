@@ -0,0 +1,168 @@
+package sap;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * The outcome of assembling some SAP source code: the program, its symbols,
+ * the errors found in it, and, if one was asked for, its listing.
+ * @author Ari Zerner
+ */
+public class AssemblyResult {
+
+    /**
+     * An error found in a line of source code.
+     */
+    public static class Diagnostic {
+
+        private final int line;
+        private final String message;
+
+        Diagnostic(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        /**
+         * Returns the number of the line with the error, counting from 0 as
+         * the listing does.
+         * @return the line number
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * Returns a description of the error.
+         * @return the error message
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + line + ": " + message;
+        }
+    }
+
+    private final int[] code;
+    private final int entry;
+    private final SymbolTable symbols;
+    private final String symbolList, listing;
+    private final List<Diagnostic> diagnostics;
+
+    AssemblyResult(int[] code, int entry, SymbolTable symbols,
+            String symbolList, List<Diagnostic> diagnostics, String listing) {
+        this.code = code;
+        this.entry = entry;
+        this.symbols = symbols;
+        this.symbolList = symbolList;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.listing = listing;
+    }
+
+    /**
+     * Checks whether the source code had any errors. If it did, the code is
+     * incomplete and shouldn't be run.
+     * @return true if and only if there were errors
+     */
+    public boolean hasErrors() {
+        return !diagnostics.isEmpty();
+    }
+
+    /**
+     * Returns the errors in the source code, in the order of their lines.
+     * Each duplicate label, and each line that couldn't be assembled, is one
+     * error.
+     * @return the errors, which may be empty
+     */
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Returns the assembled code and data.
+     * @return a copy of the code and data words
+     */
+    public int[] getCode() {
+        return code.clone();
+    }
+
+    /**
+     * Returns the number of code and data words.
+     * @return the size of the program
+     */
+    public int getSize() {
+        return code.length;
+    }
+
+    /**
+     * Returns the address at which execution starts.
+     * @return the entry point
+     */
+    public int getEntry() {
+        return entry;
+    }
+
+    /**
+     * Returns the symbols the source code defined.
+     * @return the symbol table
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Returns the symbols in the format of a .sym file.
+     * @return the symbols, sorted alphabetically
+     */
+    public String getSymbolList() {
+        return symbolList;
+    }
+
+    /**
+     * Returns the listing, in the format of a .lst file.
+     * @return the listing, or null if none was generated
+     */
+    public String getListing() {
+        return listing;
+    }
+
+    /**
+     * Returns the program in the old text format of .bin files, as
+     * BinaryImage.asText() does.
+     * @return the program as text
+     */
+    public String asText() {
+        return BinaryImage.asText(entry, IntBuffer.wrap(code), code.length);
+    }
+
+    /**
+     * Writes the assembled files, as Assembler.assembleFile() does: the
+     * listing, if there is one, to a .lst file, the symbols to a .sym file,
+     * and, if there were no errors, the program to a .bin file.
+     * @param fn the name of the files, without an extension
+     * @throws IOException if a file can't be written
+     */
+    public void write(String fn) throws IOException {
+        if (listing != null) {
+            writeText(new File(fn + ".lst"), listing);
+        }
+        writeText(new File(fn + ".sym"), symbolList);
+        if (!hasErrors()) {
+            BinaryImage.write(new File(fn + ".bin"), entry, code, code.length,
+                    symbolList);
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file));
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package sap;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Assembles many SAP source files in parallel. The files are either every
+ * .txt file in a directory or the .txt files matching a glob, such as
+ * progs/test*.txt, in which only the last part of the path may hold
+ * wildcards. Each file is assembled as Assembler.assembleFile() assembles
+ * it, into .bin, .sym, and .lst files beside it.
+ *
+ * Files are assembled on a work-stealing pool with one thread per core.
+ * Every thread has its own Assembler, so files can't see each other. A
+ * report line is printed for each file, in alphabetical order, with its
+ * result and wall time.
+ * @author Ari Zerner
+ */
+public class BatchAssembler {
+
+    private final boolean listing;
+    private final ThreadLocal<Assembler> assemblers =
+            new ThreadLocal<Assembler>() {
+        @Override
+        protected Assembler initialValue() {
+            Assembler asm = new Assembler();
+            asm.setListing(listing);
+            return asm;
+        }
+    };
+
+    /**
+     * The outcome of assembling one file.
+     */
+    public static class Result {
+
+        private final String file, message;
+        private final int numErrors;
+        private final long nanos;
+
+        Result(String file, int numErrors, String message, long nanos) {
+            this.file = file;
+            this.numErrors = numErrors;
+            this.message = message;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Returns the path of the source file.
+         * @return the file name
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * Checks whether the file assembled without errors.
+         * @return true if and only if a .bin file was written
+         */
+        public boolean assembled() {
+            return message == null;
+        }
+
+        /**
+         * Returns the number of errors in the source code.
+         * @return the number of errors
+         */
+        public int getNumErrors() {
+            return numErrors;
+        }
+
+        /**
+         * Returns the error message from assembling the file.
+         * @return the message, or null if there were no errors
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Returns how long the file took to assemble, including reading and
+         * writing files.
+         * @return the wall time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return (message == null ? "OK " : "FAIL ") + file + " "
+                    + nanos / 1000000 + "ms"
+                    + (message == null ? "" : " " + message);
+        }
+    }
+
+    private static class Job implements Callable<Result> {
+
+        private final BatchAssembler batch;
+        private final File source;
+
+        Job(BatchAssembler batch, File source) {
+            this.batch = batch;
+            this.source = source;
+        }
+
+        public Result call() {
+            String fileName = source.getPath();
+            fileName = fileName.substring(0, fileName.length() - 4);
+            Assembler asm = batch.assemblers.get();
+            long start = System.nanoTime();
+            boolean assembled = asm.assembleFile(fileName, null);
+            long nanos = System.nanoTime() - start;
+            return new Result(source.getPath(), asm.getNumErrors(),
+                    assembled ? null : asm.getErrorMess(), nanos);
+        }
+    }
+
+    /**
+     * Creates a new BatchAssembler that writes listings.
+     */
+    public BatchAssembler() {
+        this(true);
+    }
+
+    /**
+     * Creates a new BatchAssembler.
+     * @param listing whether to write .lst files
+     */
+    public BatchAssembler(boolean listing) {
+        this.listing = listing;
+    }
+
+    /**
+     * Assembles every file in a directory or matching a glob and prints a
+     * report.
+     * @param pattern the directory or glob
+     * @param out where to print the report
+     * @return true if and only if every file assembled
+     * @throws IOException if the directory can't be read
+     */
+    public boolean assemble(String pattern, PrintStream out)
+            throws IOException {
+        List<Result> results = assemble(pattern);
+        int assembled = 0;
+        long nanos = 0;
+        for (Result result : results) {
+            out.println(result);
+            if (result.assembled()) assembled++;
+            nanos += result.getNanos();
+        }
+        out.println(assembled + " of " + results.size() + " assembled, "
+                + nanos / 1000000 + "ms in all");
+        return assembled == results.size();
+    }
+
+    /**
+     * Assembles every file in a directory or matching a glob.
+     * @param pattern the directory or glob
+     * @return the results, in alphabetical order of the files
+     * @throws IOException if the directory can't be read
+     */
+    public List<Result> assemble(String pattern) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        for (File source : findSources(pattern))
+            jobs.add(new Job(this, source));
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            List<Future<Result>> futures = pool.invokeAll(jobs);
+            List<Result> results = new ArrayList<Result>(futures.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException exc) {
+                    results.add(new Result(jobs.get(i).source.getPath(), 0,
+                            String.valueOf(exc.getCause()), 0));
+                } catch (InterruptedException exc) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<File> findSources(String pattern) throws IOException {
+        File dir = new File(pattern);
+        PathMatcher matcher = null;
+        if (!dir.isDirectory()) {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:"
+                    + dir.getName());
+            dir = dir.getParentFile() == null ? new File(".")
+                    : dir.getParentFile();
+        }
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("Unable to read " + dir);
+        List<File> sources = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(".txt") || !file.isFile()) continue;
+            if (matcher == null || matcher.matches(Paths.get(name)))
+                sources.add(file);
+        }
+        Collections.sort(sources);
+        return sources;
+    }
+
+    /**
+     * Assembles the files named by the arguments: optionally -nolist, to
+     * skip writing .lst files, followed by a directory or glob.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        boolean listing = !(args.length == 2 && args[0].equals("-nolist"));
+        if (args.length != (listing ? 1 : 2)) {
+            System.out.println("Usage: java sap.BatchAssembler [-nolist] "
+                    + "<directory or glob>");
+            System.exit(2);
+        }
+        try {
+            System.exit(new BatchAssembler(listing).assemble(
+                    args[args.length - 1], System.out) ? 0 : 1);
+        } catch (IOException exc) {
+            System.out.println("Error: " + exc.getMessage());
+            System.exit(2);
+        }
+    }
+}
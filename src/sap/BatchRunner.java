@@ -0,0 +1,280 @@
+package sap;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs many SAP programs in parallel and checks their output. Each job is a
+ * line of a manifest file giving a .bin file, a file to use as the program's
+ * input (or - for no input), and a file holding the expected output, separated
+ * by whitespace. Relative paths are relative to the manifest's directory.
+ * Blank lines and lines starting with ; are ignored.
+ *
+ * Jobs run on a work-stealing pool with one thread per core. Every thread has
+ * its own VirtualMachine, and every job gets its own input and output, so
+ * jobs can't see each other. A report line is printed for each job, in the
+ * order of the manifest, with its result, wall time, and instruction count.
+ *
+ * A job passes only if its program halts and its output matches. Each job
+ * has an instruction limit and a time limit, so a program that loops forever
+ * is stopped and fails instead of holding up the whole batch.
+ * @author Ari Zerner
+ */
+public class BatchRunner {
+
+    /**
+     * The most instructions a job may execute, unless another limit is given.
+     */
+    public static final long DEFAULT_INSTRUCTION_LIMIT = 1000000000;
+
+    /**
+     * The most milliseconds a job may run, unless another limit is given.
+     */
+    public static final long DEFAULT_TIME_LIMIT = 10000;
+
+    private final int memorySize;
+    private final long instructionLimit, timeLimit;
+    private final ThreadLocal<VirtualMachine> vms =
+            new ThreadLocal<VirtualMachine>() {
+        @Override
+        protected VirtualMachine initialValue() {
+            return new VirtualMachine(memorySize);
+        }
+    };
+
+    /**
+     * The outcome of one job.
+     */
+    public static class Result {
+
+        private final String program;
+        private final boolean passed;
+        private final long nanos, instructions;
+
+        Result(String program, boolean passed, long nanos, long instructions) {
+            this.program = program;
+            this.passed = passed;
+            this.nanos = nanos;
+            this.instructions = instructions;
+        }
+
+        /**
+         * Returns the name of the program, as given in the manifest.
+         * @return the program name
+         */
+        public String getProgram() {
+            return program;
+        }
+
+        /**
+         * Checks whether the program halted and its output matched the
+         * expected output.
+         * @return true if and only if the job passed
+         */
+        public boolean passed() {
+            return passed;
+        }
+
+        /**
+         * Returns how long the program ran, including loading it.
+         * @return the wall time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the number of instructions the program executed.
+         * @return the instruction count
+         */
+        public long getInstructions() {
+            return instructions;
+        }
+
+        @Override
+        public String toString() {
+            return (passed ? "PASS " : "FAIL ") + program + " "
+                    + nanos / 1000000 + "ms " + instructions + " instructions";
+        }
+    }
+
+    private static class Job implements Callable<Result> {
+
+        private final BatchRunner runner;
+        private final String program;
+        private final File bin, input, expected;
+
+        Job(BatchRunner runner, String program, File bin, File input,
+                File expected) {
+            this.runner = runner;
+            this.program = program;
+            this.bin = bin;
+            this.input = input;
+            this.expected = expected;
+        }
+
+        public Result call() throws IOException {
+            String fileName = bin.getPath();
+            if (fileName.endsWith(".bin"))
+                fileName = fileName.substring(0, fileName.length() - 4);
+            InputStream in = input == null ? new ByteArrayInputStream(
+                    new byte[0]) : new FileInputStream(input);
+            final StringBuilder output = new StringBuilder();
+            VirtualMachine vm = runner.vms.get();
+            vm.setInstructionLimit(runner.instructionLimit);
+            vm.setTimeLimit(runner.timeLimit);
+            vm.setInput(in);
+            vm.setOutput(new OutputSink() {
+                public void write(char[] chars, int offset, int length) {
+                    output.append(chars, offset, length);
+                }
+            });
+            long start = System.nanoTime();
+            try {
+                vm.runBytecodeFile(fileName, false);
+            } finally {
+                in.close();
+            }
+            long nanos = System.nanoTime() - start;
+            boolean passed = vm.hasHalted()
+                    && output.toString().equals(readFile(expected));
+            return new Result(program, passed, nanos,
+                    vm.getInstructionCount());
+        }
+    }
+
+    /**
+     * Creates a new BatchRunner whose virtual machines have 10000 words of
+     * memory, with the default limits.
+     */
+    public BatchRunner() {
+        this(10000);
+    }
+
+    /**
+     * Creates a new BatchRunner with the default limits.
+     * @param memorySize the memory size of each virtual machine
+     */
+    public BatchRunner(int memorySize) {
+        this(memorySize, DEFAULT_INSTRUCTION_LIMIT, DEFAULT_TIME_LIMIT);
+    }
+
+    /**
+     * Creates a new BatchRunner.
+     * @param memorySize the memory size of each virtual machine
+     * @param instructionLimit the most instructions each job may execute,
+     * or 0 for no limit
+     * @param timeLimit the most milliseconds each job may run, or 0 for no
+     * limit
+     */
+    public BatchRunner(int memorySize, long instructionLimit, long timeLimit) {
+        this.memorySize = memorySize;
+        this.instructionLimit = instructionLimit;
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * Runs every job in a manifest and prints a report.
+     * @param manifest the manifest file
+     * @param out where to print the report
+     * @return true if and only if every job passed
+     * @throws IOException if the manifest can't be read
+     */
+    public boolean run(File manifest, PrintStream out) throws IOException {
+        List<Result> results = run(manifest);
+        int passed = 0;
+        long instructions = 0;
+        for (Result result : results) {
+            out.println(result);
+            if (result.passed()) passed++;
+            instructions += result.getInstructions();
+        }
+        out.println(passed + " of " + results.size() + " passed, "
+                + instructions + " instructions");
+        return passed == results.size();
+    }
+
+    /**
+     * Runs every job in a manifest.
+     * @param manifest the manifest file
+     * @return the results, in the order of the manifest
+     * @throws IOException if the manifest can't be read
+     */
+    public List<Result> run(File manifest) throws IOException {
+        List<Job> jobs = readManifest(manifest);
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            List<Future<Result>> futures = pool.invokeAll(jobs);
+            List<Result> results = new ArrayList<Result>(futures.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException exc) {
+                    results.add(new Result(jobs.get(i).program, false, 0, 0));
+                } catch (InterruptedException exc) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private List<Job> readManifest(File manifest) throws IOException {
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader lines = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(";")) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length != 3)
+                    throw new IOException("Bad manifest line: " + line);
+                jobs.add(new Job(this, fields[0], resolve(dir, fields[0]),
+                        fields[1].equals("-") ? null : resolve(dir, fields[1]),
+                        resolve(dir, fields[2])));
+            }
+        } finally {
+            lines.close();
+        }
+        return jobs;
+    }
+
+    private static File resolve(File dir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(dir, path);
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return new String(bytes);
+    }
+
+    /**
+     * Runs the jobs in the manifest named by the first argument.
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java sap.BatchRunner <manifest>");
+            System.exit(2);
+        }
+        try {
+            System.exit(new BatchRunner().run(new File(args[0]), System.out)
+                    ? 0 : 1);
+        } catch (IOException exc) {
+            System.out.println("Error: " + exc.getMessage());
+            System.exit(2);
+        }
+    }
+}
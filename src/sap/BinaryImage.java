@@ -0,0 +1,237 @@
+package sap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A SAP binary image: the assembled code and data, the entry point, and
+ * optional sections such as the symbol table.
+ *
+ * Images are stored as big-endian 32-bit words. The header is the magic number
+ * "SAPB", the format version, the entry point, the number of code and data
+ * words, and the number of sections. The code and data words follow, then the
+ * sections, each of which is a type, a length in bytes, and that many bytes.
+ * Reading loads the whole file into a buffer at once, so that the code can
+ * be copied out in bulk. The file isn't mapped, since a mapping would keep
+ * it locked on some systems until it was garbage collected.
+ *
+ * Older .bin files, which hold the size, the entry point, and the code as
+ * decimal integers separated by whitespace, are recognized and read as well.
+ * @author Ari Zerner
+ */
+public class BinaryImage {
+
+    /**
+     * The first word of every binary image ("SAPB" in ASCII).
+     */
+    public static final int MAGIC = 0x53415042;
+    /**
+     * The version of the format written by this class.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The section type holding the symbol table, in the same format as a .sym
+     * file.
+     */
+    public static final int SYMBOLS = 1;
+    private static final int HEADER_WORDS = 5;
+
+    private final int entry, size;
+    private final IntBuffer words;
+    private final Map<Integer, byte[]> sections;
+
+    private BinaryImage(int entry, int size, IntBuffer words,
+            Map<Integer, byte[]> sections) {
+        this.entry = entry;
+        this.size = size;
+        this.words = words;
+        this.sections = sections;
+    }
+
+    /**
+     * Returns the address at which execution starts.
+     * @return the entry point
+     */
+    public int getEntry() {
+        return entry;
+    }
+
+    /**
+     * Returns the number of code and data words.
+     * @return the size of the program
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Copies the code and data into the start of memory.
+     * @param memory the memory to load the program into. Must have room for
+     * getSize() words
+     */
+    public void copyTo(int[] memory) {
+        IntBuffer source = words.duplicate();
+        source.get(memory, 0, size);
+    }
+
+    /**
+     * Returns the contents of a section.
+     * @param type the type of the section
+     * @return the contents, or null if the image has no such section
+     */
+    public byte[] getSection(int type) {
+        return sections.get(type);
+    }
+
+    /**
+     * Returns the image in the old text format: the size, the entry point,
+     * and then each word, one per line.
+     * @return the image as text
+     */
+    public String asText() {
+        return asText(entry, words, size);
+    }
+
+    /**
+     * Formats a program in the old text format, as asText() does.
+     */
+    static String asText(int entry, IntBuffer words, int size) {
+        StringBuilder text = new StringBuilder(size * 4 + 16);
+        text.append(size).append('\n').append(entry).append('\n');
+        for (int i = 0; i < size; i++)
+            text.append(words.get(i)).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Reads a binary image, in either the binary or the old text format.
+     * @param file the file to read
+     * @return the image
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read or isn't a valid image
+     */
+    public static BinaryImage read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long length = in.getChannel().size();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Image too large " + file);
+            byte[] contents = new byte[(int) length];
+            new DataInputStream(in).readFully(contents);
+            ByteBuffer bytes = ByteBuffer.wrap(contents);
+            if (bytes.remaining() >= 4 && bytes.getInt(0) == MAGIC)
+                return readBinary(bytes);
+            return readText(bytes);
+        } catch (BufferUnderflowException exc) {
+            throw new IOException("Truncated image " + file);
+        } catch (IndexOutOfBoundsException exc) {
+            throw new IOException("Truncated image " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static BinaryImage readBinary(ByteBuffer bytes)
+            throws IOException {
+        IntBuffer header = bytes.asIntBuffer();
+        int version = header.get(1);
+        if (version < 1 || version > VERSION)
+            throw new IOException("Unsupported image version " + version);
+        int entry = header.get(2), size = header.get(3),
+                numSections = header.get(4);
+        if (size < 0 || numSections < 0)
+            throw new IOException("Corrupt image header");
+        bytes.position(HEADER_WORDS * 4);
+        IntBuffer words = bytes.slice().asIntBuffer();
+        if (words.remaining() < size)
+            throw new BufferUnderflowException();
+        words.limit(size);
+        bytes.position(bytes.position() + size * 4);
+        Map<Integer, byte[]> sections = new HashMap<Integer, byte[]>();
+        for (int i = 0; i < numSections; i++) {
+            int type = bytes.getInt(), length = bytes.getInt();
+            if (length < 0) throw new IOException("Corrupt section");
+            byte[] contents = new byte[length];
+            bytes.get(contents);
+            sections.put(type, contents);
+        }
+        return new BinaryImage(entry, size, words, sections);
+    }
+
+    /**
+     * Reads the old text format. Only the size, the entry point, and the
+     * words are read; anything after them is ignored.
+     */
+    private static BinaryImage readText(ByteBuffer bytes) throws IOException {
+        int size = nextInt(bytes);
+        int entry = nextInt(bytes);
+        if (size < 0) throw new IOException("Negative program size");
+        int[] words = new int[size];
+        for (int i = 0; i < size; i++)
+            words[i] = nextInt(bytes);
+        return new BinaryImage(entry, size, IntBuffer.wrap(words),
+                new HashMap<Integer, byte[]>());
+    }
+
+    private static int nextInt(ByteBuffer bytes) throws IOException {
+        int c;
+        do {
+            if (!bytes.hasRemaining()) throw new EOFException();
+            c = bytes.get();
+        } while (Character.isWhitespace(c));
+        boolean negative = c == '-';
+        if (negative || c == '+') {
+            if (!bytes.hasRemaining()) throw new EOFException();
+            c = bytes.get();
+        }
+        long value = 0;
+        while (true) {
+            if (c < '0' || c > '9') throw new IOException("Not a number");
+            value = value * 10 + (c - '0');
+            if (value > 1L << 31) throw new IOException("Number too large");
+            if (!bytes.hasRemaining()) break;
+            c = bytes.get();
+            if (Character.isWhitespace(c)) break;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new IOException("Number too large");
+        return (int) value;
+    }
+
+    /**
+     * Writes a binary image.
+     * @param file the file to write
+     * @param entry the entry point
+     * @param code the code and data words
+     * @param size the number of words of code to write
+     * @param symbols the symbol table, in the format of a .sym file, or null
+     * to leave it out
+     * @throws IOException if the file can't be written
+     */
+    public static void write(File file, int entry, int[] code, int size,
+            String symbols) throws IOException {
+        byte[] symbolBytes = symbols == null ? null : symbols.getBytes("UTF-8");
+        int numSections = symbolBytes == null ? 0 : 1;
+        int length = (HEADER_WORDS + size) * 4;
+        if (symbolBytes != null) length += 8 + symbolBytes.length;
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        bytes.putInt(MAGIC).putInt(VERSION).putInt(entry).putInt(size)
+                .putInt(numSections);
+        bytes.asIntBuffer().put(code, 0, size);
+        bytes.position(bytes.position() + size * 4);
+        if (symbolBytes != null)
+            bytes.putInt(SYMBOLS).putInt(symbolBytes.length).put(symbolBytes);
+        bytes.flip();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
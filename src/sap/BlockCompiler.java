@@ -0,0 +1,660 @@
+package sap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compiles a run of consecutive decoded SAP instructions into a JVM class that
+ * implements CompiledBlock. Registers and the compare register are held in
+ * local variables while the block runs. Jumps to instructions inside the block
+ * become JVM branches, so loops run entirely in compiled code; anything else
+ * leaves the block.
+ *
+ * A block counts the instructions it executes, and leaves at a backward
+ * branch once the count reaches the limit it was given, so that a loop never
+ * keeps the interpreter from its safepoints for long.
+ *
+ * Compiled code never reports errors itself. Before an instruction that would
+ * fail (a bad indirect address or a division by zero) or that would write to
+ * a word holding code, the block exits with that instruction's address so that
+ * the interpreter can execute it instead.
+ *
+ * The generated classes use class file version 49, which doesn't need stack
+ * map frames. BlockCompiler is not thread safe.
+ * @author Ari Zerner
+ */
+class BlockCompiler {
+
+    /**
+     * The maximum number of instructions in a block, which keeps the generated
+     * method small enough for the JVM to compile it.
+     */
+    static final int MAX_INSTRUCTIONS = 200;
+
+    // JVM opcodes
+    private static final int ICONST_0 = 3, LCONST_0 = 9, LCONST_1 = 10,
+            BIPUSH = 16, SIPUSH = 17, LDC = 18, LDC_W = 19, ILOAD = 21,
+            LLOAD = 22, ALOAD = 25, ALOAD_0 = 42, IALOAD = 46, LALOAD = 47,
+            BALOAD = 51, ISTORE = 54, LSTORE = 55, IASTORE = 79, LASTORE = 80,
+            IADD = 96, LADD = 97, ISUB = 100, LSUB = 101, IMUL = 104,
+            IDIV = 108, IINC = 132, LCMP = 148, IFEQ = 153, IFNE = 154,
+            IFLT = 155, IFGT = 157, IF_ICMPGE = 162, GOTO = 167,
+            IRETURN = 172, RETURN = 177, INVOKESPECIAL = 183,
+            ARRAYLENGTH = 190;
+
+    // local variable slots of CompiledBlock.run
+    private static final int REGISTERS = 1, MEMORY = 2, STATE = 3, CODE = 4,
+            EXECUTED = 5, FIRST_REGISTER = 6;
+
+    private final int numRegisters, codeLength;
+    private final int compareLocal, exitLocal, valueLocal, executedLocal,
+            limitLocal;
+    private int count;
+    private final int[] address = new int[MAX_INSTRUCTIONS],
+            op = new int[MAX_INSTRUCTIONS], a = new int[MAX_INSTRUCTIONS],
+            b = new int[MAX_INSTRUCTIONS], next = new int[MAX_INSTRUCTIONS];
+
+    // code generation state
+    private byte[] code;
+    private int length;
+    private int[] labels;
+    private int numLabels;
+    private List<int[]> branches; // {opcode position, label}
+    private Map<Integer, Integer> exits; // exit address -> label
+    private Map<Integer, Integer> backEdges; // target instruction -> label
+    private List<byte[]> constants;
+    private Map<String, Integer> constantIndices;
+
+    /**
+     * Creates a new BlockCompiler.
+     * @param numRegisters the number of registers of the virtual machine
+     * @param codeLength the length of the code array that will be passed to
+     * CompiledBlock.run
+     */
+    BlockCompiler(int numRegisters, int codeLength) {
+        this.numRegisters = numRegisters;
+        this.codeLength = codeLength;
+        compareLocal = FIRST_REGISTER + numRegisters;
+        exitLocal = compareLocal + 1;
+        valueLocal = compareLocal + 2;
+        executedLocal = compareLocal + 3; // a long, so it takes two slots
+        limitLocal = compareLocal + 5; // also a long
+    }
+
+    /**
+     * Checks whether an instruction can be compiled. Instructions that do I/O,
+     * use the stack, operate on blocks of memory, or stop the program can't.
+     * @param command the byte code of the instruction
+     * @return true if and only if the instruction can be compiled
+     */
+    static boolean canCompile(int command) {
+        switch (command) {
+            case 1: case 2: case 3: case 5: case 6: case 7: case 8: case 9:
+            case 10: case 12: case 13: case 14: case 15: case 16: case 17:
+            case 18: case 19: case 20: case 21: case 22: case 23: case 24:
+            case 25: case 26: case 27: case 28: case 29: case 30: case 31:
+            case 32: case 33: case 34: case 35: case 36: case 37: case 38:
+            case 53: case 54: case 56: case 57:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Appends an instruction to the block. Instructions must be added in
+     * order, each one starting where the last one ended. Operands must
+     * already have been checked the way VirtualMachine checks them when
+     * decoding.
+     * @param at the address of the instruction
+     * @param command the byte code of the instruction
+     * @param operand1 the first operand, if any
+     * @param operand2 the second operand, if any
+     * @param nextAt the address of the following instruction
+     * @return false if the instruction can't be compiled or the block is full,
+     * in which case it wasn't added
+     */
+    boolean add(int at, int command, int operand1, int operand2, int nextAt) {
+        if (count == MAX_INSTRUCTIONS || !canCompile(command)) return false;
+        address[count] = at;
+        op[count] = command;
+        a[count] = operand1;
+        b[count] = operand2;
+        next[count] = nextAt;
+        count++;
+        return true;
+    }
+
+    /**
+     * Returns the address just past the last instruction added.
+     * @return the end of the block
+     */
+    int end() {
+        return count == 0 ? 0 : next[count - 1];
+    }
+
+    /**
+     * Generates and loads a class for the instructions added so far.
+     * @return the compiled block, or null if there were no instructions or
+     * the class couldn't be loaded
+     */
+    CompiledBlock compile() {
+        if (count == 0) return null;
+        try {
+            Class<?> c = new Loader().define(generateClass());
+            return (CompiledBlock) c.getDeclaredConstructor().newInstance();
+        } catch (Exception exc) {
+            return null;
+        } catch (LinkageError err) {
+            return null;
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+
+        Loader() {
+            super(CompiledBlock.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] classFile) {
+            return defineClass(null, classFile, 0, classFile.length);
+        }
+    }
+
+    /*
+     * The following methods generate the body of CompiledBlock.run.
+     */
+
+    private void generateRun() {
+        code = new byte[256];
+        length = 0;
+        labels = new int[count + 16];
+        numLabels = 0;
+        branches = new ArrayList<int[]>();
+        exits = new HashMap<Integer, Integer>();
+        backEdges = new HashMap<Integer, Integer>();
+        int[] instructionLabels = new int[count];
+        for (int i = 0; i < count; i++)
+            instructionLabels[i] = newLabel();
+        int exit = newLabel();
+        for (int r = 0; r < numRegisters; r++) {
+            emit(ALOAD, REGISTERS);
+            pushInt(r);
+            emit(IALOAD);
+            emit(ISTORE, FIRST_REGISTER + r);
+        }
+        emit(ALOAD, STATE);
+        emit(ICONST_0);
+        emit(IALOAD);
+        emit(ISTORE, compareLocal);
+        emit(LCONST_0);
+        emit(LSTORE, executedLocal);
+        emit(ALOAD, EXECUTED);
+        emit(ICONST_0);
+        emit(LALOAD);
+        emit(LSTORE, limitLocal);
+        for (int i = 0; i < count; i++) {
+            placeLabel(instructionLabels[i]);
+            countInstruction(LADD);
+            generateInstruction(i, instructionLabels);
+        }
+        branch(GOTO, exitLabel(next[count - 1]));
+        for (Map.Entry<Integer, Integer> stub : exits.entrySet()) {
+            placeLabel(stub.getValue());
+            if (Arrays.binarySearch(address, 0, count, stub.getKey()) >= 0)
+                countInstruction(LSUB); // bailed out before executing it
+            pushInt(stub.getKey());
+            emit(ISTORE, exitLocal);
+            branch(GOTO, exit);
+        }
+        for (Map.Entry<Integer, Integer> edge : backEdges.entrySet()) {
+            placeLabel(edge.getValue());
+            emit(LLOAD, executedLocal);
+            emit(LLOAD, limitLocal);
+            emit(LCMP);
+            branch(IFLT, instructionLabels[edge.getKey()]);
+            pushInt(address[edge.getKey()]); // not executed yet, so no LSUB
+            emit(ISTORE, exitLocal);
+            branch(GOTO, exit);
+        }
+        placeLabel(exit);
+        for (int r = 0; r < numRegisters; r++) {
+            emit(ALOAD, REGISTERS);
+            pushInt(r);
+            emit(ILOAD, FIRST_REGISTER + r);
+            emit(IASTORE);
+        }
+        emit(ALOAD, STATE);
+        emit(ICONST_0);
+        emit(ILOAD, compareLocal);
+        emit(IASTORE);
+        emit(ALOAD, EXECUTED);
+        emit(ICONST_0);
+        emit(LLOAD, executedLocal);
+        emit(LASTORE);
+        emit(ILOAD, exitLocal);
+        emit(IRETURN);
+        for (int[] br : branches) {
+            int offset = labels[br[1]] - br[0];
+            code[br[0] + 1] = (byte) (offset >> 8);
+            code[br[0] + 2] = (byte) offset;
+        }
+    }
+
+    private void generateInstruction(int i, int[] instructionLabels) {
+        int x = a[i], y = b[i];
+        int bail = exitLabel(address[i]); // let the interpreter handle it
+        switch (op[i]) {
+            case 1: // clrr
+                emit(ICONST_0);
+                storeRegister(x);
+                break;
+            case 2: // clrx
+                checkIndex(x, bail);
+                checkNotCode(x, bail);
+                emit(ALOAD, MEMORY);
+                loadRegister(x);
+                emit(ICONST_0);
+                emit(IASTORE);
+                break;
+            case 3: // clrm
+                checkNotCodeAt(x, bail);
+                emit(ALOAD, MEMORY);
+                pushInt(x);
+                emit(ICONST_0);
+                emit(IASTORE);
+                break;
+            case 5: // movir
+            case 10: // movar
+                pushInt(x);
+                storeRegister(y);
+                break;
+            case 6: // movrr
+                loadRegister(x);
+                storeRegister(y);
+                break;
+            case 7: // movrm
+                checkNotCodeAt(y, bail);
+                emit(ALOAD, MEMORY);
+                pushInt(y);
+                loadRegister(x);
+                emit(IASTORE);
+                break;
+            case 8: // movmr
+                emit(ALOAD, MEMORY);
+                pushInt(x);
+                emit(IALOAD);
+                storeRegister(y);
+                break;
+            case 9: // movxr
+                checkIndex(x, bail);
+                loadIndirect(x);
+                storeRegister(y);
+                break;
+            case 12: case 13: case 14: case 15: // add
+                arithmetic(i, IADD, bail);
+                break;
+            case 16: case 17: case 18: case 19: // subtract
+                arithmetic(i, ISUB, bail);
+                break;
+            case 20: case 21: case 22: case 23: // multiply
+                arithmetic(i, IMUL, bail);
+                break;
+            case 24: case 25: case 26: case 27: // divide
+                checkSource(i, op[i] - 24, bail);
+                loadSource(i, op[i] - 24);
+                emit(ISTORE, valueLocal);
+                emit(ILOAD, valueLocal);
+                branch(IFEQ, bail);
+                loadRegister(y);
+                emit(ILOAD, valueLocal);
+                emit(IDIV);
+                storeRegister(y);
+                break;
+            case 28: // jmp
+                branch(GOTO, target(i, x, instructionLabels));
+                break;
+            case 29: // sojz
+            case 30: // sojnz
+            case 31: // aojz
+            case 32: // aojnz
+                emit(IINC, FIRST_REGISTER + x);
+                emitByte(op[i] <= 30 ? -1 : 1);
+                loadRegister(x);
+                branch(op[i] == 29 || op[i] == 31 ? IFEQ : IFNE,
+                        target(i, y, instructionLabels));
+                break;
+            case 33: // cmpir
+            case 34: // cmprr
+            case 35: // cmpmr
+                checkSource(i, op[i] - 33, bail);
+                loadRegister(y);
+                loadSource(i, op[i] - 33);
+                emit(ISUB);
+                emit(ISTORE, compareLocal);
+                break;
+            case 36: // jmpn
+            case 37: // jmpz
+            case 38: // jmpp
+            case 57: // jmpne
+                emit(ILOAD, compareLocal);
+                branch(op[i] == 36 ? IFLT : op[i] == 37 ? IFEQ
+                        : op[i] == 38 ? IFGT : IFNE,
+                        target(i, x, instructionLabels));
+                break;
+            case 53: // movrx
+                checkIndex(y, bail);
+                checkNotCode(y, bail);
+                emit(ALOAD, MEMORY);
+                loadRegister(y);
+                loadRegister(x);
+                emit(IASTORE);
+                break;
+            case 54: // movxx
+                checkIndex(x, bail);
+                checkIndex(y, bail);
+                checkNotCode(y, bail);
+                emit(ALOAD, MEMORY);
+                loadRegister(y);
+                loadIndirect(x);
+                emit(IASTORE);
+                break;
+            case 56: // nop
+                break;
+        }
+    }
+
+    /**
+     * Adds one to or subtracts one from the count of executed instructions.
+     * @param jvmOp LADD or LSUB
+     */
+    private void countInstruction(int jvmOp) {
+        emit(LLOAD, executedLocal);
+        emit(LCONST_1);
+        emit(jvmOp);
+        emit(LSTORE, executedLocal);
+    }
+
+    /**
+     * Generates an add, subtract, or multiply into the second operand.
+     */
+    private void arithmetic(int i, int jvmOp, int bail) {
+        checkSource(i, (op[i] - 12) % 4, bail);
+        loadRegister(b[i]);
+        loadSource(i, (op[i] - 12) % 4);
+        emit(jvmOp);
+        storeRegister(b[i]);
+    }
+
+    /**
+     * Branches to bail if the first operand of an instruction is an invalid
+     * indirect address. Checks are always made with an empty operand stack.
+     * @param kind 0, 1, 2, or 3 for an ir, rr, mr, or xr instruction
+     */
+    private void checkSource(int i, int kind, int bail) {
+        if (kind == 3) checkIndex(a[i], bail);
+    }
+
+    /**
+     * Pushes the value of the first operand of an instruction.
+     * @param kind 0, 1, 2, or 3 for an ir, rr, mr, or xr instruction
+     */
+    private void loadSource(int i, int kind) {
+        switch (kind) {
+            case 0:
+                pushInt(a[i]);
+                break;
+            case 1:
+                loadRegister(a[i]);
+                break;
+            case 2:
+                emit(ALOAD, MEMORY);
+                pushInt(a[i]);
+                emit(IALOAD);
+                break;
+            case 3:
+                loadIndirect(a[i]);
+                break;
+        }
+    }
+
+    private void loadRegister(int r) {
+        emit(ILOAD, FIRST_REGISTER + r);
+    }
+
+    private void storeRegister(int r) {
+        emit(ISTORE, FIRST_REGISTER + r);
+    }
+
+    private void loadIndirect(int r) {
+        emit(ALOAD, MEMORY);
+        loadRegister(r);
+        emit(IALOAD);
+    }
+
+    /**
+     * Branches to bail unless register r holds a valid memory address.
+     */
+    private void checkIndex(int r, int bail) {
+        loadRegister(r);
+        branch(IFLT, bail);
+        loadRegister(r);
+        emit(ALOAD, MEMORY);
+        emit(ARRAYLENGTH);
+        branch(IF_ICMPGE, bail);
+    }
+
+    /**
+     * Branches to bail if the address in register r holds code. The address
+     * must already have been checked.
+     */
+    private void checkNotCode(int r, int bail) {
+        int ok = newLabel();
+        loadRegister(r);
+        emit(ALOAD, CODE);
+        emit(ARRAYLENGTH);
+        branch(IF_ICMPGE, ok);
+        emit(ALOAD, CODE);
+        loadRegister(r);
+        emit(BALOAD);
+        branch(IFNE, bail);
+        placeLabel(ok);
+    }
+
+    /**
+     * Version of checkNotCode for an address known at compile time.
+     */
+    private void checkNotCodeAt(int address, int bail) {
+        if (address >= codeLength) return;
+        emit(ALOAD, CODE);
+        pushInt(address);
+        emit(BALOAD);
+        branch(IFNE, bail);
+    }
+
+    /**
+     * Returns the label to jump to for a SAP jump target: the instruction
+     * itself if it's in this block and after the jump, a check of the
+     * instruction count if it's in this block and not after the jump, and
+     * otherwise an exit.
+     * @param from the index of the jump instruction
+     */
+    private int target(int from, int at, int[] instructionLabels) {
+        int i = Arrays.binarySearch(address, 0, count, at);
+        if (i < 0) return exitLabel(at);
+        if (i > from) return instructionLabels[i];
+        Integer label = backEdges.get(i);
+        if (label == null) {
+            label = newLabel();
+            backEdges.put(i, label);
+        }
+        return label;
+    }
+
+    private int exitLabel(int at) {
+        Integer label = exits.get(at);
+        if (label == null) {
+            label = newLabel();
+            exits.put(at, label);
+        }
+        return label;
+    }
+
+    private int newLabel() {
+        if (numLabels == labels.length)
+            labels = Arrays.copyOf(labels, numLabels * 2);
+        return numLabels++;
+    }
+
+    private void placeLabel(int label) {
+        labels[label] = length;
+    }
+
+    private void branch(int opcode, int label) {
+        branches.add(new int[] {length, label});
+        emit(opcode);
+        emitByte(0);
+        emitByte(0);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(SIPUSH);
+            emitByte(value >> 8);
+            emitByte(value);
+        } else {
+            int index = integerConstant(value);
+            if (index < 256) {
+                emit(LDC, index);
+            } else {
+                emit(LDC_W);
+                emitByte(index >> 8);
+                emitByte(index);
+            }
+        }
+    }
+
+    private void emit(int opcode) {
+        emitByte(opcode);
+    }
+
+    private void emit(int opcode, int operand) {
+        emitByte(opcode);
+        emitByte(operand);
+    }
+
+    private void emitByte(int value) {
+        if (length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length++] = (byte) value;
+    }
+
+    /*
+     * The following methods write the class file.
+     */
+
+    private byte[] generateClass() throws IOException {
+        constants = new ArrayList<byte[]>();
+        constantIndices = new HashMap<String, Integer>();
+        int thisClass = classConstant("sap/CompiledBlock$Generated");
+        int superClass = classConstant("java/lang/Object");
+        int blockInterface = classConstant("sap/CompiledBlock");
+        int init = utf8Constant("<init>");
+        int voidDescriptor = utf8Constant("()V");
+        int codeAttribute = utf8Constant("Code");
+        int superInit = constant("M", 10, superClass,
+                constant("N", 12, init, voidDescriptor));
+        int run = utf8Constant("run");
+        int runDescriptor = utf8Constant("([I[I[I[Z[J)I");
+        generateRun();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(constants.size() + 1);
+        for (byte[] constant : constants)
+            out.write(constant);
+        out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(blockInterface);
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+        byte[] initCode = {ALOAD_0, (byte) INVOKESPECIAL,
+            (byte) (superInit >> 8), (byte) superInit, (byte) RETURN};
+        writeMethod(out, init, voidDescriptor, codeAttribute, 1, 1,
+                initCode, initCode.length);
+        writeMethod(out, run, runDescriptor, codeAttribute, 5,
+                limitLocal + 2, code, length);
+        out.writeShort(0); // attributes
+        return bytes.toByteArray();
+    }
+
+    private void writeMethod(DataOutputStream out, int name, int descriptor,
+            int codeAttribute, int maxStack, int maxLocals, byte[] body,
+            int bodyLength) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + bodyLength);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bodyLength);
+        out.write(body, 0, bodyLength);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private int utf8Constant(String value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(1);
+            out.writeUTF(value);
+            return addConstant("U" + value, bytes.toByteArray());
+        } catch (IOException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+
+    private int classConstant(String name) {
+        return constant("C", 7, utf8Constant(name));
+    }
+
+    private int integerConstant(int value) {
+        return addConstant("I" + value, new byte[] {3, (byte) (value >> 24),
+            (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+    }
+
+    /**
+     * Adds a constant made of a tag and one or two constant pool indices.
+     */
+    private int constant(String kind, int tag, int... indices) {
+        byte[] bytes = new byte[1 + 2 * indices.length];
+        bytes[0] = (byte) tag;
+        for (int i = 0; i < indices.length; i++) {
+            bytes[1 + 2 * i] = (byte) (indices[i] >> 8);
+            bytes[2 + 2 * i] = (byte) indices[i];
+        }
+        return addConstant(kind + Arrays.toString(indices), bytes);
+    }
+
+    private int addConstant(String key, byte[] bytes) {
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            constants.add(bytes);
+            index = constants.size();
+            constantIndices.put(key, index);
+        }
+        return index;
+    }
+}
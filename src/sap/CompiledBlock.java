@@ -0,0 +1,28 @@
+package sap;
+
+/**
+ * A region of SAP code that has been compiled to JVM bytecode by
+ * BlockCompiler. Implementations are generated at runtime; this interface is
+ * only public so that the generated classes, which live in their own class
+ * loader, can implement it.
+ * @author Ari Zerner
+ */
+public interface CompiledBlock {
+
+    /**
+     * Runs the block until control leaves it, an instruction needs the
+     * interpreter, or it has run for long enough.
+     * @param registers the registers, read on entry and written back on exit
+     * @param memory the memory
+     * @param state holds the compare register at index 0, read on entry and
+     * written back on exit
+     * @param code flags the memory words that hold decoded instructions. The
+     * block exits instead of writing to any of them
+     * @param executed holds at index 0, on entry, the number of instructions
+     * after which the block leaves at its next backward branch. The number
+     * of instructions the block executed is written there on exit
+     * @return the address of the next instruction for the interpreter
+     */
+    int run(int[] registers, int[] memory, int[] state, boolean[] code,
+            long[] executed);
+}
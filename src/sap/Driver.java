@@ -1,10 +1,44 @@
 package sap;
+import java.io.*;
 import java.util.Scanner;
 
 public class Driver {    
     
+    /**
+     * Runs the SAP command line. With asm, run, or asmr and a file name, does
+     * that one thing and exits, without the interactive prompt: the exit
+     * status is 0 if the program assembled and, if it was run, halted; 1 if
+     * it had assembly errors, couldn't be loaded, or stopped with an error;
+     * and 2 if the arguments were wrong. Assembly messages go to standard
+     * error, and the program's input and output are standard input and
+     * output, which makes this suitable for scripts. For example:
+     * java -cp SillyAssemblyProject.jar sap.Driver asmr power
+     * With -nolist before the file name, no .lst file is written.
+     * @param args asm, run, or asmr, optionally -nolist, and a file name
+     * without its extension; or, for the interactive prompt, optionally the
+     * memory size, followed by flat (the default), paged, or direct for the
+     * memory model, followed by the stack capacity
+     */
     public static void main(String[] args) {
-        VirtualMachine vm = new VirtualMachine(10000);
+        if (args.length > 0 && (args[0].equals("asm")
+                || args[0].equals("run") || args[0].equals("asmr"))) {
+            boolean listing = !(args.length == 3
+                    && args[1].equals("-nolist"));
+            if (args.length != (listing ? 2 : 3)) {
+                System.err.println("Usage: java sap.Driver asm|run|asmr "
+                        + "[-nolist] <filename>");
+                System.exit(2);
+            }
+            System.exit(runOnce(args[0], args[args.length - 1], listing));
+        }
+        int memorySize = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int memoryModel = VirtualMachine.FLAT_MEMORY;
+        if (args.length > 1 && args[1].equalsIgnoreCase("paged"))
+            memoryModel = VirtualMachine.HEAP_PAGES;
+        else if (args.length > 1 && args[1].equalsIgnoreCase("direct"))
+            memoryModel = VirtualMachine.DIRECT_PAGES;
+        VirtualMachine vm = new VirtualMachine(memorySize, memoryModel);
+        if (args.length > 2) vm.setStackCapacity(Integer.parseInt(args[2]));
         Scanner scan = new Scanner(System.in);
         String command, parameter, line;
         do {
@@ -39,6 +73,75 @@ public class Driver {
                     System.out.println("Debugging " + parameter + ".bin");
                     vm.runBytecodeFile(parameter, true);
                 }
+            } else if (command.equalsIgnoreCase("prof")) {
+                System.out.println("Profiling " + parameter + ".bin");
+                vm.setProfiling(true);
+                vm.runBytecodeFile(parameter, false);
+                vm.setProfiling(false);
+                if (vm.hasWrittenProfile()) {
+                    System.out.println("Profile written to " + parameter
+                            + ".prof");
+                }
+            } else if (command.equalsIgnoreCase("snap")) {
+                System.out.println("Running " + parameter + ".bin");
+                vm.setSnapshotOnBreak(parameter);
+                vm.runBytecodeFile(parameter, false);
+                vm.setSnapshotOnBreak(null);
+            } else if (command.equalsIgnoreCase("record")) {
+                System.out.println("Running " + parameter + ".bin");
+                vm.setInputRecording(parameter);
+                vm.runBytecodeFile(parameter, false);
+                vm.setInputRecording(null);
+                System.out.println("Input written to " + parameter
+                        + ".inlog");
+            } else if (command.equalsIgnoreCase("replay")) {
+                System.out.println("Replaying " + parameter + ".inlog");
+                vm.setInputReplay(parameter);
+                vm.runBytecodeFile(parameter, false);
+                vm.setInputReplay(null);
+            } else if (command.equalsIgnoreCase("resume")) {
+                System.out.println("Resuming " + parameter + ".snap");
+                vm.runSnapshot(parameter, false);
+            } else if (command.equalsIgnoreCase("limit")) {
+                String[] limits = parameter.split("\\s+");
+                try {
+                    long instructions = Long.parseLong(limits[0]);
+                    long millis = limits.length > 1
+                            ? Long.parseLong(limits[1]) : 0;
+                    vm.setInstructionLimit(instructions);
+                    vm.setTimeLimit(millis);
+                } catch (NumberFormatException exc) {
+                    System.out.println("Error: Bad limit " + parameter);
+                }
+            } else if (command.equalsIgnoreCase("batch")) {
+                System.out.println("Running jobs in " + parameter);
+                try {
+                    new BatchRunner().run(new File(parameter), System.out);
+                } catch (IOException exc) {
+                    System.out.println("Error: Unable to read " + parameter);
+                }
+            } else if (command.equalsIgnoreCase("asmall")) {
+                System.out.println("Assembling " + parameter);
+                try {
+                    new BatchAssembler().assemble(parameter, System.out);
+                } catch (IOException exc) {
+                    System.out.println("Error: " + exc.getMessage());
+                }
+            } else if (command.equalsIgnoreCase("serve")) {
+                System.out.println("Serving jobs on port " + parameter);
+                Scheduler scheduler = new Scheduler(Runtime.getRuntime()
+                        .availableProcessors(), Scheduler.DEFAULT_QUANTUM,
+                        memorySize, memoryModel);
+                try {
+                    new JobServer(scheduler).serve(Integer.parseInt(
+                            parameter));
+                } catch (NumberFormatException exc) {
+                    System.out.println("Error: Bad port " + parameter);
+                } catch (IOException exc) {
+                    System.out.println("Error: " + exc.getMessage());
+                } finally {
+                    scheduler.shutdown();
+                }
             } else if (command.equalsIgnoreCase("help"))
                 System.out.println("Commands:\n"
                         + "asm <filename> - assemble\n"
@@ -46,9 +149,42 @@ public class Driver {
                         + "asmr <filename> - assemble and run\n"
                         + "debug <filename> - debug\n"
                         + "asmd <filename> - assemble and debug\n"
+                        + "prof <filename> - run and write a profile\n"
+                        + "snap <filename> - run and save a snapshot at the "
+                        + "first brk\n"
+                        + "resume <filename> - resume from a snapshot\n"
+                        + "record <filename> - run and record the input\n"
+                        + "replay <filename> - run with recorded input\n"
+                        + "limit <instructions> [<ms>] - stop programs that "
+                        + "run too long (0 for no limit)\n"
+                        + "batch <manifest> - run and check many programs\n"
+                        + "asmall <directory or glob> - assemble many files "
+                        + "in parallel\n"
+                        + "serve <port> - run jobs sent to a local port\n"
                         + "exit");
             else if (!command.equalsIgnoreCase("exit"))
                 System.out.println("Unrecognized command: " + command);
         } while (!command.equalsIgnoreCase("exit"));
-    }    
+    }
+    
+    /**
+     * Carries out a single command given on the command line.
+     * @param listing whether to write a .lst file when assembling
+     * @return the exit status
+     */
+    private static int runOnce(String command, String fileName,
+            boolean listing) {
+        if (!command.equals("run")) {
+            Assembler assembler = new Assembler();
+            assembler.setListing(listing);
+            if (!assembler.assembleFile(fileName, null)) {
+                System.err.println(assembler.getErrorMess());
+                return 1;
+            }
+            if (command.equals("asm")) return 0;
+        }
+        VirtualMachine vm = new VirtualMachine(10000);
+        vm.runBytecodeFile(fileName, false);
+        return vm.hasHalted() ? 0 : 1;
+    }
 }
@@ -0,0 +1,221 @@
+package sap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A record of every input a program read, and when. Each event holds the
+ * kind of read, the value it produced, and the number of instructions the
+ * program had executed when it read it, counting the read itself. A log
+ * recorded from one run can be replayed into another, so that an
+ * interactive program can be run again without anyone typing, and takes
+ * exactly the same path every time.
+ *
+ * Log files are a sequence of big-endian words and variable-length numbers:
+ * the magic number "SAPI", the format version, and the number of events,
+ * followed by each event's kind, the instructions since the previous event,
+ * and its value. Numbers are written seven bits at a time, low bits first.
+ * @author Ari Zerner
+ */
+class InputLog {
+
+    /**
+     * The first word of every log file ("SAPI" in ASCII).
+     */
+    static final int MAGIC = 0x53415049;
+    /**
+     * The version of the format written by this class.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The kinds of event. INT is an int read by readi and MISMATCH a readi
+     * that found something else. CHAR is a character read by readc, or -1
+     * at the end of the input, and CHAR_ERROR a readc that failed. LINE is a
+     * line read by readln. END is a readi or readln at the end of the input.
+     */
+    static final int INT = 0, MISMATCH = 1, CHAR = 2, CHAR_ERROR = 3,
+            LINE = 4, END = 5;
+
+    private byte[] kinds = new byte[64];
+    private long[] counts = new long[64];
+    private int[] values = new int[64];
+    private final List<String> lines = new ArrayList<String>();
+    private int size, next, nextLine;
+
+    /**
+     * Adds an event to the end of the log.
+     * @param count the instruction count when the input was read
+     * @param kind the kind of event
+     * @param value the int or character read, if any
+     * @param line the line read, if any
+     */
+    void add(long count, int kind, int value, String line) {
+        if (size == kinds.length) {
+            kinds = Arrays.copyOf(kinds, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        kinds[size] = (byte) kind;
+        counts[size] = count;
+        values[size] = value;
+        size++;
+        if (kind == LINE) lines.add(line);
+    }
+
+    /**
+     * Checks whether there are events left to replay.
+     */
+    boolean hasNext() {
+        return next < size;
+    }
+
+    /**
+     * Returns the kind of the next event to replay.
+     */
+    int nextKind() {
+        return kinds[next];
+    }
+
+    /**
+     * Returns the instruction count of the next event to replay.
+     */
+    long nextCount() {
+        return counts[next];
+    }
+
+    /**
+     * Replays the next event.
+     * @return its int or character, or 0 if it has neither
+     */
+    int nextValue() {
+        if (kinds[next] == LINE) nextLine++;
+        return values[next++];
+    }
+
+    /**
+     * Replays the next event, which must be a LINE.
+     * @return its line
+     */
+    String nextLine() {
+        next++;
+        return lines.get(nextLine++);
+    }
+
+    /**
+     * Writes this log to a file.
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            long count = 0;
+            int line = 0;
+            for (int i = 0; i < size; i++) {
+                out.writeByte(kinds[i]);
+                writeNumber(out, counts[i] - count);
+                count = counts[i];
+                switch (kinds[i]) {
+                    case INT: // zigzag, so small negative numbers are short
+                        writeNumber(out, (values[i] << 1 ^ values[i] >> 31)
+                                & 0xffffffffL);
+                        break;
+                    case CHAR:
+                        writeNumber(out, values[i] + 1L);
+                        break;
+                    case LINE:
+                        byte[] bytes = lines.get(line++).getBytes("UTF-8");
+                        writeNumber(out, bytes.length);
+                        out.write(bytes);
+                        break;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a log from a file.
+     * @param file the file to read
+     * @return the log, ready to replay from the beginning
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read or isn't a valid log
+     */
+    static InputLog read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not an input log");
+            int version = in.readInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException("Unsupported input log version "
+                        + version);
+            int size = in.readInt();
+            if (size < 0) throw new IOException("Corrupt input log " + file);
+            InputLog log = new InputLog();
+            long count = 0;
+            for (int i = 0; i < size; i++) {
+                int kind = in.readByte();
+                count += readNumber(in);
+                int value = 0;
+                String line = null;
+                switch (kind) {
+                    case INT:
+                        int zigzag = (int) readNumber(in);
+                        value = zigzag >>> 1 ^ -(zigzag & 1);
+                        break;
+                    case CHAR:
+                        value = (int) readNumber(in) - 1;
+                        break;
+                    case LINE:
+                        long length = readNumber(in);
+                        if (length > Integer.MAX_VALUE)
+                            throw new IOException("Corrupt input log "
+                                    + file);
+                        byte[] bytes = new byte[(int) length];
+                        in.readFully(bytes);
+                        line = new String(bytes, "UTF-8");
+                        break;
+                    case MISMATCH:
+                    case CHAR_ERROR:
+                    case END:
+                        break;
+                    default:
+                        throw new IOException("Corrupt input log " + file);
+                }
+                log.add(count, kind, value, line);
+            }
+            return log;
+        } catch (EOFException exc) {
+            throw new IOException("Truncated input log " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeNumber(DataOutputStream out, long number)
+            throws IOException {
+        while ((number & ~0x7fL) != 0) {
+            out.writeByte((int) (number & 0x7f) | 0x80);
+            number >>>= 7;
+        }
+        out.writeByte((int) number);
+    }
+
+    private static long readNumber(DataInputStream in) throws IOException {
+        long number = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            number |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return number;
+        }
+        throw new IOException("Corrupt input log");
+    }
+}
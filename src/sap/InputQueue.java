@@ -0,0 +1,152 @@
+package sap;
+
+import java.util.*;
+
+/**
+ * Input for a program that is run a slice at a time. Text is offered to the
+ * queue as it arrives, and a read instruction only executes once the queue
+ * holds everything it needs: a whole token for readi, a character for readc,
+ * or a whole line for readln. After the queue is closed every read can
+ * execute, and reads past the end behave as they do at the end of a stream.
+ * Tokens and lines are split exactly as a Scanner splits them.
+ * @author Ari Zerner
+ */
+class InputQueue implements InputSource {
+
+    /**
+     * How many consumed characters the queue may hold before they are
+     * removed, so that reading through a large input doesn't shift the rest
+     * of it on every read.
+     */
+    private static final int COMPACT_THRESHOLD = 4096;
+
+    private final StringBuilder text = new StringBuilder();
+    private int position; // index in text of the next unread character
+    private boolean closed;
+
+    /**
+     * Adds text to the end of the queue.
+     */
+    synchronized void offer(String input) {
+        text.append(input);
+    }
+
+    /**
+     * Marks the end of the input.
+     */
+    synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * Checks whether an instruction can execute without waiting for more
+     * input.
+     * @param opcode the opcode of the instruction
+     * @return false if and only if the instruction is a read that needs more
+     * input than the queue holds
+     */
+    synchronized boolean ready(int opcode) {
+        if (closed) return true;
+        switch (opcode) {
+            case 48: // readi
+                return tokenEnd(skipWhitespace()) < text.length();
+            case 50: // readc
+                return text.length() > position;
+            case 51: // readln
+                return text.indexOf("\n", position) >= 0;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns the index of the first character at or after the read
+     * position that isn't whitespace, or the length of the text if there is
+     * none.
+     */
+    private int skipWhitespace() {
+        int i = position, length = text.length();
+        while (i < length && Character.isWhitespace(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * Returns the index just past the token starting at the given index.
+     */
+    private int tokenEnd(int start) {
+        int i = start, length = text.length();
+        while (i < length && !Character.isWhitespace(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * Marks everything before an index as read, and drops the read text once
+     * enough of it has built up.
+     */
+    private void consume(int end) {
+        position = end;
+        if (position >= COMPACT_THRESHOLD && position >= text.length() / 2) {
+            text.delete(0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * Reads an int, as Scanner.nextInt() does.
+     * @throws InputMismatchException if the next token isn't an int, in which
+     * case only the whitespace before it is removed from the queue
+     * @throws NoSuchElementException at the end of the input
+     */
+    public synchronized int readInt() {
+        int start = skipWhitespace();
+        if (start == text.length()) throw new NoSuchElementException();
+        int end = tokenEnd(start);
+        try {
+            int value = new Scanner(text.substring(start, end)).nextInt();
+            consume(end);
+            return value;
+        } catch (InputMismatchException exc) {
+            consume(start);
+            throw exc;
+        }
+    }
+
+    /**
+     * Reads a character.
+     * @return the character, or -1 at the end of the input
+     */
+    public synchronized int readChar() {
+        if (position == text.length()) return -1;
+        char c = text.charAt(position);
+        consume(position + 1);
+        return c;
+    }
+
+    /**
+     * Reads the rest of the current line, as Scanner.nextLine() does: a line
+     * ends at \n, \r, \r\n, \u2028, \u2029, or \u0085.
+     * @throws NoSuchElementException at the end of the input
+     */
+    public synchronized String readLine() {
+        int length = text.length();
+        if (position == length) throw new NoSuchElementException();
+        int end = position;
+        while (end < length && !isLineSeparator(text.charAt(end)))
+            end++;
+        String line = text.substring(position, end);
+        if (end < length) {
+            if (text.charAt(end) == '\r' && end + 1 < length
+                    && text.charAt(end + 1) == '\n') end++;
+            end++;
+        }
+        consume(end);
+        return line;
+    }
+
+    private static boolean isLineSeparator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029'
+                || c == '\u0085';
+    }
+}
@@ -0,0 +1,34 @@
+package sap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A source of input for a SAP program, such as a console or a stream. The
+ * read instructions, and the debugger, get their input through one of these.
+ * @author Ari Zerner
+ */
+public interface InputSource {
+
+    /**
+     * Reads an int for readi.
+     * @return the int
+     * @throws InputMismatchException if the input isn't an int
+     * @throws NoSuchElementException at the end of the input
+     */
+    int readInt();
+
+    /**
+     * Reads a character for readc.
+     * @return the character, or -1 at the end of the input
+     * @throws IOException if the input can't be read
+     */
+    int readChar() throws IOException;
+
+    /**
+     * Reads a line for readln or for the debugger.
+     * @return the line, without its line terminator
+     * @throws NoSuchElementException at the end of the input
+     */
+    String readLine();
+}
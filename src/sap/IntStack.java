@@ -0,0 +1,152 @@
+package sap;
+
+import java.util.*;
+
+/**
+ * A stack of ints with a fixed capacity. Room for the values is allocated as
+ * the stack grows, so a large capacity costs nothing until it is used. The
+ * stack also remembers the most values it has held, and can push or pop a
+ * whole subroutine frame at once.
+ * @author Ari Zerner
+ */
+public class IntStack {
+
+    private static final int INITIAL_LENGTH = 64;
+
+    private final int capacity;
+    private int[] values;
+    private int size, highWater;
+
+    /**
+     * Creates a new, empty IntStack.
+     * @param capacity the most values the stack can hold
+     */
+    public IntStack(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Negative capacity");
+        this.capacity = capacity;
+        values = new int[Math.min(capacity, INITIAL_LENGTH)];
+    }
+
+    /**
+     * Returns the most values the stack can hold.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of values on the stack.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether the stack has no values.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns whether the stack holds as many values as it can.
+     */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Returns the most values the stack has held since it was created or
+     * last cleared.
+     */
+    public int getHighWater() {
+        return highWater;
+    }
+
+    /**
+     * Pushes a value, unless the stack is full.
+     * @param value the value
+     * @return whether the value was pushed
+     */
+    public boolean push(int value) {
+        if (size == capacity) return false;
+        if (size == values.length) grow(size + 1);
+        values[size++] = value;
+        if (size > highWater) highWater = size;
+        return true;
+    }
+
+    /**
+     * Pops a value. The stack must not be empty.
+     * @return the value
+     */
+    public int pop() {
+        if (size == 0) throw new NoSuchElementException("Empty stack");
+        return values[--size];
+    }
+
+    /**
+     * Pushes a value followed by words[from] through words[to - 1], stopping
+     * when the stack is full.
+     * @return whether everything was pushed
+     */
+    public boolean pushFrame(int value, int[] words, int from, int to) {
+        int count = 1 + to - from, room = capacity - size;
+        if (count > room) {
+            if (room == 0) return false;
+            grow(capacity);
+            values[size++] = value;
+            System.arraycopy(words, from, values, size, room - 1);
+            size = capacity;
+            highWater = capacity;
+            return false;
+        }
+        if (size + count > values.length) grow(size + count);
+        values[size++] = value;
+        System.arraycopy(words, from, values, size, to - from);
+        size += to - from;
+        if (size > highWater) highWater = size;
+        return true;
+    }
+
+    /**
+     * Undoes pushFrame: pops into words[to - 1] down through words[from], and
+     * then pops one more value. Any values missing because the stack runs out
+     * are zero.
+     * @return the last value popped
+     */
+    public int popFrame(int[] words, int from, int to) {
+        int count = to - from;
+        if (size > count) {
+            size -= count;
+            System.arraycopy(values, size, words, from, count);
+            return values[--size];
+        }
+        int available = size;
+        Arrays.fill(words, from, to - available, 0);
+        System.arraycopy(values, 0, words, to - available, available);
+        size = 0;
+        return 0;
+    }
+
+    /**
+     * Returns the values on the stack, from the bottom up.
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Removes every value and resets the high-water mark.
+     */
+    public void clear() {
+        size = 0;
+        highWater = 0;
+    }
+
+    private void grow(int minLength) {
+        long length = Math.max((long) values.length * 2, minLength);
+        values = Arrays.copyOf(values, (int) Math.min(length, capacity));
+    }
+}
@@ -0,0 +1,331 @@
+package sap;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/**
+ * Assembles and runs SAP programs sent over a local socket, so that a single
+ * long-lived JVM can serve many submissions without starting up for each one.
+ * The server only listens on the loopback address. Each connection is
+ * handled on its own virtual thread when the JVM has them, and on a pooled
+ * thread otherwise, while the programs themselves run on a Scheduler.
+ *
+ * A connection carries any number of jobs, one after another. A job starts
+ * with a line holding a command and an instruction budget, separated by a
+ * space. The command is asm (assemble only), asmr (assemble and run), or
+ * run (run an assembled image), and a budget of 0 means no limit. It is
+ * followed by a SOURCE block for asm and asmr or an IMAGE block (the
+ * contents of a .bin file) for run, and then an INPUT block, which may be
+ * empty. A block is a line holding its name and its length in bytes,
+ * followed by that many bytes. Text is UTF-8.
+ *
+ * The server answers with blocks of its own: a LISTING block holding the
+ * assembly listing, sent for asm, and for asmr when there are errors; OUTPUT
+ * blocks holding the program's output as it is written; and finally a line
+ * DONE, followed by a space and one of assembled, asm-errors, halted,
+ * failed, or budget, then a space and the number of instructions executed.
+ * A program has halted only if it executed halt; one that couldn't be
+ * loaded, hit a runtime error, or read past the end of its input has failed.
+ * A request the server can't understand is answered by a line starting with
+ * ERROR, and the connection is closed. A program still running when its
+ * client disconnects is stopped.
+ * @author Ari Zerner
+ */
+public class JobServer {
+
+    private static final String UTF8 = "UTF-8";
+    private static final int MAX_BLOCK = 64 << 20;
+    private static final long LIVENESS_INTERVAL = 100000000;
+
+    private final Scheduler scheduler;
+    private volatile ServerSocket server;
+    private volatile boolean closed;
+
+    /**
+     * Creates a new JobServer.
+     * @param scheduler the scheduler to run programs on
+     */
+    public JobServer(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Accepts connections on a port of the loopback address until close() is
+     * called or the socket fails.
+     * @param port the port number
+     * @throws IOException if the socket can't be opened or fails
+     */
+    public void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50,
+                InetAddress.getByName(null));
+        try {
+            serve(server);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Accepts connections on a server socket until close() is called or the
+     * socket fails. Interrupting the thread doesn't stop it, since accepting
+     * a connection can't be interrupted.
+     * @param server the server socket
+     * @throws IOException if the socket fails
+     */
+    public void serve(ServerSocket server) throws IOException {
+        this.server = server;
+        if (closed) server.close();
+        ExecutorService connections = newConnectionExecutor();
+        try {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException exc) {
+                    if (closed) return;
+                    throw exc;
+                }
+                connections.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (IOException exc) {
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException exc) {
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    /**
+     * Stops the server by closing the socket it accepts connections on.
+     * Connections already accepted are served until their clients finish.
+     * @throws IOException if the socket can't be closed
+     */
+    public void close() throws IOException {
+        closed = true;
+        ServerSocket socket = server;
+        if (socket != null) socket.close();
+    }
+
+    /**
+     * Makes an executor that starts a virtual thread for each task, or, on a
+     * JVM without virtual threads, one that reuses idle platform threads.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method method = Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception exc) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        String header;
+        while ((header = readLine(in)) != null) {
+            if (header.isEmpty()) continue;
+            String[] fields = header.split(" ");
+            long budget;
+            try {
+                if (fields.length != 2) throw new NumberFormatException();
+                budget = Long.parseLong(fields[1]);
+                if (budget < 0) throw new NumberFormatException();
+            } catch (NumberFormatException exc) {
+                error(out, "Bad job: " + header);
+                return;
+            }
+            String command = fields[0];
+            boolean assemble = command.equals("asm")
+                    || command.equals("asmr");
+            if (!assemble && !command.equals("run")) {
+                error(out, "Unrecognized command: " + command);
+                return;
+            }
+            byte[] program = readBlock(in, assemble ? "SOURCE" : "IMAGE");
+            byte[] input = program == null ? null : readBlock(in, "INPUT");
+            if (input == null) {
+                error(out, "Bad block");
+                return;
+            }
+            runJob(command, program, new String(input, UTF8),
+                    budget == 0 ? Long.MAX_VALUE : budget, socket, in, out);
+        }
+    }
+
+    private void runJob(String command, byte[] program, String input,
+            long budget, Socket socket, InputStream in, OutputStream out)
+            throws IOException {
+        File dir = File.createTempFile("sapjob", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Unable to create " + dir);
+        String fileName = new File(dir, "job").getPath();
+        try {
+            if (command.equals("run")) {
+                writeFile(fileName + ".bin", program);
+            } else {
+                writeFile(fileName + ".txt", program);
+                ByteArrayOutputStream listing = new ByteArrayOutputStream();
+                PrintStream messages = new PrintStream(listing, true, UTF8);
+                boolean assembled = new Assembler().assembleFile(fileName,
+                        messages);
+                if (command.equals("asm") || !assembled)
+                    writeBlock(out, "LISTING", listing.toByteArray());
+                if (!assembled || command.equals("asm")) {
+                    done(out, assembled ? "assembled" : "asm-errors", 0);
+                    return;
+                }
+            }
+            run(fileName, input, budget, socket, in, out);
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Runs an assembled program, streaming its output back as it is written.
+     * Cancels the program if the client goes away before it finishes.
+     */
+    private void run(String fileName, String input, long budget,
+            Socket socket, InputStream in, OutputStream out)
+            throws IOException {
+        final BlockingQueue<String> chunks = new LinkedBlockingQueue<String>();
+        Scheduler.Session session = scheduler.submit(fileName,
+                new OutputSink() {
+            public void write(char[] chars, int offset, int length) {
+                chunks.add(new String(chars, offset, length));
+            }
+        }, budget);
+        session.offerInput(input);
+        session.closeInput();
+        boolean completed = false;
+        try {
+            long checked = System.nanoTime();
+            while (!session.isCancelled()) {
+                boolean finished = session.isFinished();
+                String chunk = chunks.poll(10, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    if (finished) break;
+                    if (System.nanoTime() - checked > LIVENESS_INTERVAL) {
+                        if (!isConnected(socket, in))
+                            throw new SocketException("Client disconnected");
+                        checked = System.nanoTime();
+                    }
+                    continue;
+                }
+                StringBuilder output = new StringBuilder(chunk);
+                while ((chunk = chunks.poll()) != null)
+                    output.append(chunk);
+                writeBlock(out, "OUTPUT", output.toString().getBytes(UTF8));
+                out.flush();
+            }
+            completed = true;
+        } catch (InterruptedException exc) {
+            throw new InterruptedIOException();
+        } finally {
+            if (!completed) session.cancel();
+        }
+        String result = session.exceededBudget() ? "budget"
+                : session.hasHalted() ? "halted" : "failed";
+        done(out, result, session.getInstructionCount());
+    }
+
+    private static void done(OutputStream out, String result,
+            long instructions) throws IOException {
+        out.write(("DONE " + result + " " + instructions + "\n")
+                .getBytes(UTF8));
+        out.flush();
+    }
+
+    private static void error(OutputStream out, String message)
+            throws IOException {
+        out.write(("ERROR " + message + "\n").getBytes(UTF8));
+        out.flush();
+    }
+
+    /**
+     * Checks whether the client is still there, without consuming any of a
+     * job it may already have sent. A program that writes nothing would
+     * otherwise never notice that its client had gone.
+     */
+    private static boolean isConnected(Socket socket, InputStream in)
+            throws IOException {
+        if (in.available() > 0) return true;
+        socket.setSoTimeout(1);
+        in.mark(1);
+        try {
+            if (in.read() < 0) return false;
+            in.reset();
+        } catch (SocketTimeoutException exc) {
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a line of ASCII text.
+     * @return the line, without its terminator, or null at the end of the
+     * stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) return line.length() == 0 ? null : line.toString();
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads a block with the given name.
+     * @return the contents of the block, or null if the next block has a
+     * different name or is malformed
+     */
+    private static byte[] readBlock(InputStream in, String name)
+            throws IOException {
+        String header = readLine(in);
+        if (header == null || !header.startsWith(name + " ")) return null;
+        int length;
+        try {
+            length = Integer.parseInt(header.substring(name.length() + 1));
+        } catch (NumberFormatException exc) {
+            return null;
+        }
+        if (length < 0 || length > MAX_BLOCK) return null;
+        byte[] bytes = new byte[length];
+        new DataInputStream(in).readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBlock(OutputStream out, String name,
+            byte[] bytes) throws IOException {
+        out.write((name + " " + bytes.length + "\n").getBytes(UTF8));
+        out.write(bytes);
+    }
+
+    private static void writeFile(String fileName, byte[] bytes)
+            throws IOException {
+        OutputStream out = new FileOutputStream(fileName);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package sap;
+
+import java.util.*;
+
+/**
+ * Splits SAP source code into lines and tokens. The whole source is held in
+ * one char array, and tokens are given as offsets into it, so lexing only
+ * allocates a String when the caller asks for a token's text. Mnemonics,
+ * directives, registers, and immediates are recognized straight from the
+ * array.
+ *
+ * Lines end as they do for Scanner.nextLine(), at \r\n, \n, \r, \u2028,
+ * \u2029, or \u0085, and are trimmed as String.trim() trims. A comment runs
+ * from the first semicolon on a line to its end, and a label definition from
+ * the start of the line to the first colon before the comment. The rest of
+ * the line is the code, whose tokens are separated by whitespace as
+ * Character.isWhitespace() defines it. The first token of the code is a
+ * MNEMONIC, a DIRECTIVE, or a WORD; the others are REGISTERs (r followed by
+ * an int), IMMEDIATEs (# followed by an int), or WORDs.
+ * @author Ari Zerner
+ */
+class Lexer {
+
+    /**
+     * The kinds of token. END follows the last token on a line.
+     */
+    static final int END = 0, LABEL = 1, MNEMONIC = 2, DIRECTIVE = 3,
+            REGISTER = 4, IMMEDIATE = 5, STRING = 6, COMMENT = 7, WORD = 8;
+
+    /**
+     * The values of DIRECTIVE tokens.
+     */
+    static final int DOT_START = 0, DOT_END = 1, DOT_INTEGER = 2,
+            DOT_ALLOCATE = 3, DOT_STRING = 4;
+
+    private static final String[] directives = {
+        ".start", ".end", ".integer", ".allocate", ".string"
+    };
+
+    /*
+     * Mnemonics and directives, keyed by their characters packed seven bits
+     * at a time into a long and sorted by key, so that a token can be looked
+     * up without making a String of it. Keywords are at most nine characters.
+     */
+    private static final long[] keywords;
+    private static final int[] keywordKinds, keywordValues;
+    static {
+        Map<Long, int[]> table = new TreeMap<Long, int[]>();
+        for (int i = 0; Language.getCommand(i) != null; i++) {
+            String command = Language.getCommand(i);
+            table.put(pack(command.toCharArray(), 0, command.length()),
+                    new int[] {MNEMONIC, i});
+        }
+        for (int i = 0; i < directives.length; i++) {
+            table.put(pack(directives[i].toCharArray(), 0,
+                    directives[i].length()), new int[] {DIRECTIVE, i});
+        }
+        keywords = new long[table.size()];
+        keywordKinds = new int[table.size()];
+        keywordValues = new int[table.size()];
+        int i = 0;
+        for (Map.Entry<Long, int[]> entry : table.entrySet()) {
+            keywords[i] = entry.getKey();
+            keywordKinds[i] = entry.getValue()[0];
+            keywordValues[i] = entry.getValue()[1];
+            i++;
+        }
+    }
+
+    private final char[] text;
+    private final int length; // where the source ends
+    private int next; // where the next line starts
+    private int lineStart, lineEnd, labelEnd, codeStart, codeEnd;
+    private int commentStart, pos;
+    private boolean labelPending, commentPending, first;
+    private int kind, start, end, value;
+
+    /**
+     * Creates a new Lexer.
+     * @param text the array holding the source code
+     * @param start where the source code starts in text
+     * @param end where the source code ends in text
+     */
+    Lexer(char[] text, int start, int end) {
+        this.text = text;
+        this.next = start;
+        this.length = end;
+    }
+
+    /**
+     * Checks whether the rest of the source holds anything but whitespace,
+     * as Scanner.hasNext() does.
+     */
+    boolean hasToken() {
+        for (int i = next; i < length; i++) {
+            if (!Character.isWhitespace(text[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next line.
+     * @return false if there are no more lines
+     */
+    boolean nextLine() {
+        if (next >= length) {
+            return false;
+        }
+        int i = next;
+        while (i < length && !isLineEnd(text[i])) {
+            i++;
+        }
+        lineStart = trimStart(next, i);
+        lineEnd = trimEnd(lineStart, i);
+        next = i == length ? i : text[i] == '\r' && i + 1 < length
+                && text[i + 1] == '\n' ? i + 2 : i + 1;
+        commentStart = indexOf(';', lineStart, lineEnd);
+        int beforeComment = commentStart < 0 ? lineEnd : commentStart;
+        labelEnd = indexOf(':', lineStart, beforeComment);
+        codeStart = trimStart(labelEnd < 0 ? lineStart : labelEnd + 1,
+                beforeComment);
+        codeEnd = trimEnd(codeStart, beforeComment);
+        pos = codeStart;
+        labelPending = labelEnd >= 0;
+        commentPending = commentStart >= 0;
+        first = true;
+        return true;
+    }
+
+    private static boolean isLineEnd(char c) {
+        switch (c) {
+            case '\n': case '\r': case '\u2028': case '\u2029': case '\u0085':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && text[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && text[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns where the current line starts, after leading whitespace.
+     */
+    int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * Returns where the current line ends, before trailing whitespace.
+     */
+    int lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * Checks whether the current line is empty once trimmed.
+     */
+    boolean isBlank() {
+        return lineStart == lineEnd;
+    }
+
+    /**
+     * Checks whether the current line has anything but whitespace between
+     * its label and its comment, by String.trim()'s definition of whitespace.
+     * The code may still hold no tokens, if it's all other whitespace.
+     */
+    boolean hasCode() {
+        return codeStart < codeEnd;
+    }
+
+    /**
+     * Moves to the next token on the current line: its LABEL definition, if
+     * it has one, the tokens of its code, then its COMMENT, if it has one,
+     * and then END.
+     * @return the kind of the token
+     */
+    int next() {
+        if (labelPending) {
+            labelPending = false;
+            return token(LABEL, lineStart, labelEnd);
+        }
+        while (pos < codeEnd && Character.isWhitespace(text[pos])) {
+            pos++;
+        }
+        if (pos == codeEnd) {
+            if (commentPending) {
+                commentPending = false;
+                return token(COMMENT, commentStart, lineEnd);
+            }
+            return token(END, pos, pos);
+        }
+        int tokenStart = pos;
+        while (pos < codeEnd && !Character.isWhitespace(text[pos])) {
+            pos++;
+        }
+        token(WORD, tokenStart, pos);
+        if (first) {
+            first = false;
+            lookUpKeyword();
+        } else if (text[start] == 'r' || text[start] == '#') {
+            long number = parseInt(start + 1, end);
+            if (number != Long.MIN_VALUE) {
+                kind = text[start] == 'r' ? REGISTER : IMMEDIATE;
+                value = (int) number;
+            }
+        }
+        return kind;
+    }
+
+    /**
+     * Moves to a STRING token holding the rest of the code on the current
+     * line, including any whitespace before it.
+     * @return STRING, or END if there is nothing left
+     */
+    int rest() {
+        if (pos == codeEnd) {
+            return next();
+        }
+        token(STRING, pos, codeEnd);
+        pos = codeEnd;
+        return kind;
+    }
+
+    private int token(int kind, int start, int end) {
+        this.kind = kind;
+        this.start = start;
+        this.end = end;
+        return kind;
+    }
+
+    /**
+     * Returns the kind of the current token.
+     */
+    int kind() {
+        return kind;
+    }
+
+    /**
+     * Returns the value of the current token: the byte code of a MNEMONIC,
+     * one of the DOT_ constants for a DIRECTIVE, or the number of a REGISTER
+     * or IMMEDIATE.
+     */
+    int value() {
+        return value;
+    }
+
+    /**
+     * Returns the text of the current token.
+     */
+    String text() {
+        return new String(text, start, end - start);
+    }
+
+    /**
+     * Makes the current token a MNEMONIC or DIRECTIVE if its text, ignoring
+     * case, is one.
+     */
+    private void lookUpKeyword() {
+        long key = pack(text, start, end);
+        if (key >= 0) {
+            int i = Arrays.binarySearch(keywords, key);
+            if (i >= 0) {
+                kind = keywordKinds[i];
+                value = keywordValues[i];
+            }
+        } else if (key == NOT_ASCII) {
+            String word = text().toLowerCase();
+            Integer byteCode = Language.getByteCode(word);
+            if (byteCode != null) {
+                kind = MNEMONIC;
+                value = byteCode;
+            }
+            for (int i = 0; i < directives.length; i++) {
+                if (directives[i].equals(word)) {
+                    kind = DIRECTIVE;
+                    value = i;
+                }
+            }
+        }
+    }
+
+    private static final long TOO_LONG = -1, NOT_ASCII = -2;
+
+    /**
+     * Packs the lowercase form of some ASCII characters into a long.
+     * @return the packed characters, TOO_LONG if there are more than nine,
+     * or NOT_ASCII if any of them aren't ASCII or are NUL
+     */
+    private static long pack(char[] chars, int start, int end) {
+        long key = 0;
+        for (int i = start; i < end; i++) {
+            char c = chars[i];
+            if (c == 0 || c >= 128) {
+                return NOT_ASCII;
+            }
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            key = key << 7 | c;
+        }
+        return end - start > 9 ? TOO_LONG : key;
+    }
+
+    /**
+     * Parses an int as Integer.parseInt() does.
+     * @return the int, or Long.MIN_VALUE if the characters aren't one
+     */
+    private long parseInt(int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (text[i] == '-' || text[i] == '+')) {
+            negative = text[i] == '-';
+            i++;
+        }
+        if (i == to) {
+            return Long.MIN_VALUE;
+        }
+        long number = 0;
+        for (; i < to; i++) {
+            char c = text[i];
+            if (c >= 128) { // other scripts' digits are allowed too
+                try {
+                    return Integer.parseInt(new String(text, from,
+                            to - from));
+                } catch (NumberFormatException exc) {
+                    return Long.MIN_VALUE;
+                }
+            }
+            if (c < '0' || c > '9') {
+                return Long.MIN_VALUE;
+            }
+            number = number * 10 + (c - '0');
+            if (number > 1L << 31) {
+                return Long.MIN_VALUE;
+            }
+        }
+        number = negative ? -number : number;
+        return number > Integer.MAX_VALUE ? Long.MIN_VALUE : number;
+    }
+}
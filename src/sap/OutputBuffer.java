@@ -0,0 +1,120 @@
+package sap;
+
+/**
+ * Collects output for an OutputSink so that it can be written in bulk rather
+ * than a character at a time. The buffer is flushed at the end of every line
+ * and whenever it fills up. Anything that waits for the user, such as reading
+ * input, should call flush() first so that prompts are visible.
+ * @author Ari Zerner
+ */
+public class OutputBuffer {
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private OutputSink sink;
+    private final char[] buffer;
+    private int length;
+
+    /**
+     * Creates a new OutputBuffer with the default capacity.
+     * @param sink where to write the output
+     */
+    public OutputBuffer(OutputSink sink) {
+        this(sink, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new OutputBuffer.
+     * @param sink where to write the output
+     * @param capacity the number of characters to hold before flushing
+     */
+    public OutputBuffer(OutputSink sink, int capacity) {
+        this.sink = sink;
+        buffer = new char[capacity];
+    }
+
+    /**
+     * Flushes this buffer and sends all further output to another sink.
+     * @param sink where to write the output
+     */
+    public void setSink(OutputSink sink) {
+        flush();
+        this.sink = sink;
+    }
+
+    /**
+     * Adds a character to the buffer.
+     * @param c the character
+     */
+    public void print(char c) {
+        if (length == buffer.length) flush();
+        buffer[length++] = c;
+        if (c == '\n') flush();
+    }
+
+    /**
+     * Adds a block of characters, stored one per integer, to the buffer.
+     * @param chars the characters
+     * @param offset the index of the first character
+     * @param count the number of characters
+     */
+    public void print(int[] chars, int offset, int count) {
+        int end = offset + count;
+        while (offset < end) {
+            if (length == buffer.length) flush();
+            int stop = Math.min(end, offset + buffer.length - length);
+            while (offset < stop) {
+                char c = (char) chars[offset++];
+                buffer[length++] = c;
+                if (c == '\n') {
+                    flush();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an integer, in decimal, to the buffer.
+     * @param i the integer
+     */
+    public void print(int i) {
+        print(Integer.toString(i));
+    }
+
+    /**
+     * Adds a string to the buffer.
+     * @param s the string
+     */
+    public void print(String s) {
+        int count = s.length();
+        for (int i = 0; i < count; i++)
+            print(s.charAt(i));
+    }
+
+    /**
+     * Adds a string and a newline to the buffer.
+     * @param s the string
+     */
+    public void println(String s) {
+        print(s);
+        print('\n');
+    }
+
+    /**
+     * Adds a newline to the buffer.
+     */
+    public void println() {
+        print('\n');
+    }
+
+    /**
+     * Writes everything in the buffer to the sink.
+     */
+    public void flush() {
+        if (length == 0) return;
+        int count = length;
+        length = 0;
+        sink.write(buffer, 0, count);
+    }
+}
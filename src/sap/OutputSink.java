@@ -0,0 +1,19 @@
+package sap;
+
+/**
+ * A destination for the output of a SAP program, such as a console or a
+ * stream. An OutputBuffer collects the output and hands it to its sink in
+ * bulk.
+ * @author Ari Zerner
+ */
+public interface OutputSink {
+
+    /**
+     * Writes characters to this sink. They should be visible to the user by
+     * the time this method returns.
+     * @param chars the array holding the characters
+     * @param offset the index of the first character to write
+     * @param length the number of characters to write
+     */
+    void write(char[] chars, int offset, int length);
+}
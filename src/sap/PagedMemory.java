@@ -0,0 +1,119 @@
+package sap;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A large memory made of fixed-size pages that are allocated the first time
+ * they are written to. Words in pages that have never been written read as
+ * zero, so an address space of hundreds of millions of words only takes up
+ * room for the parts that are used. Pages are kept either on the Java heap
+ * or in direct buffers outside it.
+ * @author Ari Zerner
+ */
+class PagedMemory {
+
+    /**
+     * The number of words in a page.
+     */
+    static final int PAGE_SIZE = 4096;
+    private static final int PAGE_BITS = 12, OFFSET_MASK = PAGE_SIZE - 1;
+
+    private final int size;
+    private final boolean direct;
+    private final int[][] heapPages;
+    private final IntBuffer[] directPages;
+    private int[] touched; // indices of the allocated pages
+    private int numTouched;
+
+    /**
+     * Creates a new PagedMemory with no pages allocated.
+     * @param size the number of words
+     * @param direct whether to keep the pages outside the Java heap
+     */
+    PagedMemory(int size, boolean direct) {
+        this.size = size;
+        this.direct = direct;
+        int numPages = (int) (((long) size + OFFSET_MASK) >> PAGE_BITS);
+        heapPages = direct ? null : new int[numPages][];
+        directPages = direct ? new IntBuffer[numPages] : null;
+        touched = new int[16];
+    }
+
+    /**
+     * Returns the number of words in this memory.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Reads a word. The address must be less than size().
+     */
+    int get(int address) {
+        int page = address >>> PAGE_BITS;
+        if (direct) {
+            IntBuffer buffer = directPages[page];
+            return buffer == null ? 0 : buffer.get(address & OFFSET_MASK);
+        }
+        int[] words = heapPages[page];
+        return words == null ? 0 : words[address & OFFSET_MASK];
+    }
+
+    /**
+     * Writes a word, allocating its page if needed. The address must be less
+     * than size().
+     */
+    void set(int address, int value) {
+        int page = address >>> PAGE_BITS;
+        if (direct) {
+            IntBuffer buffer = directPages[page];
+            if (buffer == null) {
+                if (value == 0) return;
+                buffer = ByteBuffer.allocateDirect(PAGE_SIZE * 4)
+                        .order(ByteOrder.nativeOrder()).asIntBuffer();
+                directPages[page] = buffer;
+                touch(page);
+            }
+            buffer.put(address & OFFSET_MASK, value);
+            return;
+        }
+        int[] words = heapPages[page];
+        if (words == null) {
+            if (value == 0) return;
+            words = new int[PAGE_SIZE];
+            heapPages[page] = words;
+            touch(page);
+        }
+        words[address & OFFSET_MASK] = value;
+    }
+
+    private void touch(int page) {
+        if (numTouched == touched.length)
+            touched = Arrays.copyOf(touched, numTouched * 2);
+        touched[numTouched++] = page;
+    }
+
+    /**
+     * Returns the start addresses of the allocated pages, in order.
+     */
+    int[] pageStarts() {
+        int[] starts = Arrays.copyOf(touched, numTouched);
+        Arrays.sort(starts);
+        for (int i = 0; i < starts.length; i++)
+            starts[i] <<= PAGE_BITS;
+        return starts;
+    }
+
+    /**
+     * Sets every word to zero by releasing the allocated pages. This takes
+     * time in proportion to the number of pages that were written.
+     */
+    void clear() {
+        for (int i = 0; i < numTouched; i++) {
+            if (direct) directPages[touched[i]] = null;
+            else heapPages[touched[i]] = null;
+        }
+        numTouched = 0;
+    }
+}
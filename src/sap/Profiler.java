@@ -0,0 +1,220 @@
+package sap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Counts how often each address and opcode of a SAP program is executed and
+ * how often each backward jump is taken, and writes a report of the hot spots.
+ * Addresses in the report are given relative to the closest symbol from the
+ * .sym file and matched with their source lines from the .lst file.
+ * @author Ari Zerner
+ */
+class Profiler {
+
+    private static final int HOT_ADDRESSES = 20, HOT_LOOPS = 10;
+
+    private final long[] addressCounts, backEdgeCounts, opcodeCounts;
+    private final int[] backEdgeTargets;
+
+    /**
+     * Creates a new Profiler with all counts at zero.
+     * @param memorySize the memory size of the virtual machine
+     */
+    Profiler(int memorySize) {
+        addressCounts = new long[memorySize];
+        backEdgeCounts = new long[memorySize];
+        backEdgeTargets = new int[memorySize];
+        opcodeCounts = new long[64];
+    }
+
+    /**
+     * Records that an instruction is about to be executed.
+     * @param address the address of the instruction
+     * @param opcode the word at that address
+     */
+    void count(int address, int opcode) {
+        addressCounts[address]++;
+        if (opcode >= 0 && opcode < opcodeCounts.length)
+            opcodeCounts[opcode]++;
+    }
+
+    /**
+     * Records that a jump went backward, closing a loop.
+     * @param from the address of the jump instruction
+     * @param to the address jumped to
+     */
+    void backwardJump(int from, int to) {
+        backEdgeCounts[from]++;
+        backEdgeTargets[from] = to;
+    }
+
+    /**
+     * Checks whether an instruction is a jump, as opposed to a subroutine call
+     * or return, so that going backward means it closed a loop.
+     * @param opcode the byte code of the instruction
+     * @return true if and only if the instruction is a jump
+     */
+    static boolean isJump(int opcode) {
+        return opcode >= 28 && opcode <= 32 || opcode >= 36 && opcode <= 38
+                || opcode == 57;
+    }
+
+    /**
+     * Writes the report to a .prof file. This method automatically adds .prof
+     * to the end of the file name, and reads the .sym and .lst files with the
+     * same name if they exist.
+     * @param fileName the name of the program
+     * @param instructions the total number of instructions executed
+     * @param stack the stack the program used
+     * @throws IOException if the report can't be written
+     */
+    void writeReport(String fileName, long instructions, IntStack stack)
+            throws IOException {
+        SymbolTable symbols = readSymbols(fileName + ".sym");
+        TreeMap<Integer, String> lines = readListing(fileName + ".lst");
+        PrintStream prof = new PrintStream(new FileOutputStream(
+                fileName + ".prof"));
+        try {
+            prof.println("Profile of " + fileName + ".bin");
+            prof.println(instructions + " instructions executed");
+            prof.println("At most " + stack.getHighWater() + " of "
+                    + stack.capacity() + " stack slots used");
+            prof.println();
+            writeHotAddresses(prof, instructions, symbols, lines);
+            prof.println();
+            writeHotLoops(prof, instructions, symbols, lines);
+            prof.println();
+            writeOpcodes(prof, instructions);
+        } finally {
+            prof.close();
+        }
+    }
+
+    private void writeHotAddresses(PrintStream prof, long instructions,
+            SymbolTable symbols, TreeMap<Integer, String> lines) {
+        prof.println("Hot addresses:");
+        prof.println(String.format("%12s %6s %7s  %-20s %s",
+                "count", "%", "address", "symbol", "source"));
+        List<Integer> addresses = rank(addressCounts);
+        for (int i = 0; i < addresses.size() && i < HOT_ADDRESSES; i++) {
+            int address = addresses.get(i);
+            prof.println(String.format("%12d %6s %7d  %-20s %s",
+                    addressCounts[address],
+                    percent(addressCounts[address], instructions), address,
+                    symbolize(address, symbols), source(address, lines)));
+        }
+    }
+
+    private void writeHotLoops(PrintStream prof, long instructions,
+            SymbolTable symbols, TreeMap<Integer, String> lines) {
+        prof.println("Hot loops:");
+        prof.println(String.format("%12s %12s %6s  %-13s %-20s %s",
+                "iterations", "instructions", "%", "addresses", "symbol",
+                "source"));
+        final long[] loopCounts = new long[backEdgeCounts.length];
+        for (int jump = 0; jump < backEdgeCounts.length; jump++) {
+            if (backEdgeCounts[jump] == 0) continue;
+            for (int at = backEdgeTargets[jump]; at <= jump; at++)
+                loopCounts[jump] += addressCounts[at];
+        }
+        List<Integer> jumps = rank(loopCounts);
+        for (int i = 0; i < jumps.size() && i < HOT_LOOPS; i++) {
+            int jump = jumps.get(i), top = backEdgeTargets[jump];
+            prof.println(String.format("%12d %12d %6s  %-13s %-20s %s",
+                    backEdgeCounts[jump], loopCounts[jump],
+                    percent(loopCounts[jump], instructions),
+                    top + "-" + jump, symbolize(top, symbols),
+                    source(top, lines)));
+        }
+    }
+
+    private void writeOpcodes(PrintStream prof, long instructions) {
+        prof.println("Opcodes:");
+        prof.println(String.format("%12s %6s  %s", "count", "%", "opcode"));
+        List<Integer> opcodes = rank(opcodeCounts);
+        for (int opcode : opcodes) {
+            String command = Language.getCommand(opcode);
+            prof.println(String.format("%12d %6s  %s",
+                    opcodeCounts[opcode],
+                    percent(opcodeCounts[opcode], instructions),
+                    command == null ? "" + opcode : command));
+        }
+    }
+
+    /**
+     * Returns the indices of the nonzero counts, from highest to lowest count.
+     */
+    private static List<Integer> rank(final long[] counts) {
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] > 0) indices.add(i);
+        Collections.sort(indices, new Comparator<Integer>() {
+            public int compare(Integer i, Integer j) {
+                return counts[i] > counts[j] ? -1
+                        : counts[i] < counts[j] ? 1 : i.compareTo(j);
+            }
+        });
+        return indices;
+    }
+
+    private static String percent(long count, long total) {
+        return total == 0 ? "" : String.format("%.1f%%", 100.0 * count / total);
+    }
+
+    private static String symbolize(int address, SymbolTable symbols) {
+        Integer symbol = symbols.getAddressAtOrBefore(address);
+        if (symbol == null) return "";
+        String label = symbols.getLabel(symbol);
+        return symbol == address ? label : label + "+" + (address - symbol);
+    }
+
+    private static String source(int address, TreeMap<Integer, String> lines) {
+        Map.Entry<Integer, String> line = lines.floorEntry(address);
+        return line == null ? "" : line.getValue();
+    }
+
+    private static SymbolTable readSymbols(String fileName) {
+        SymbolTable symbols = new SymbolTable();
+        try {
+            Scanner sym = new Scanner(new FileInputStream(fileName));
+            while (sym.hasNext()) {
+                String label = sym.next();
+                symbols.addSymbol(label, sym.nextInt());
+            }
+            sym.close();
+        } catch (Exception exc) {
+        }
+        return symbols;
+    }
+
+    /**
+     * Reads the lines of a listing that hold code, mapped from the address of
+     * their first word to their line number and source.
+     */
+    private static TreeMap<Integer, String> readListing(String fileName) {
+        TreeMap<Integer, String> lines = new TreeMap<Integer, String>();
+        int sourceColumn = 36; // as written by Assembler
+        try {
+            BufferedReader lst = new BufferedReader(new FileReader(fileName));
+            String line;
+            while ((line = lst.readLine()) != null) {
+                if (line.startsWith("Symbol Table:")) break;
+                Scanner fields = new Scanner(line.length() > sourceColumn
+                        ? line.substring(0, sourceColumn) : line);
+                if (!fields.hasNextInt()) continue;
+                int lineNumber = fields.nextInt();
+                if (!fields.hasNext()) continue;
+                String address = fields.next();
+                if (!address.endsWith(":") || !fields.hasNextInt()) continue;
+                String source = line.length() > sourceColumn
+                        ? line.substring(sourceColumn).trim() : "";
+                lines.put(Integer.parseInt(address.substring(0,
+                        address.length() - 1)), lineNumber + ": " + source);
+            }
+            lst.close();
+        } catch (Exception exc) {
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,320 @@
+package sap;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs many SAP programs at once on a small, fixed set of carrier threads.
+ * Each program runs in a session with its own virtual machine, input, and
+ * output. A carrier takes the session at the head of the run queue, runs it
+ * for a quantum of instructions, and puts it back at the tail, so thousands
+ * of sessions can share a few threads, each making steady progress. A
+ * session whose program is waiting for input is parked off the queue, using
+ * no thread at all, until input is offered to it.
+ * @author Ari Zerner
+ */
+public class Scheduler {
+
+    /**
+     * The number of instructions a session runs before it yields, unless
+     * another quantum is given.
+     */
+    public static final long DEFAULT_QUANTUM = 10000;
+
+    private final long quantum;
+    private final int memorySize, memoryModel;
+    private final BlockingQueue<Session> runQueue =
+            new LinkedBlockingQueue<Session>();
+    private final Thread[] carriers;
+
+    /**
+     * A program running on a Scheduler.
+     */
+    public class Session {
+
+        private final String fileName;
+        private final VirtualMachine vm;
+        private final InputQueue input = new InputQueue();
+        private final long budget;
+        private boolean loaded, loadFailed, parked, woken, finished,
+                overBudget, cancelled;
+        private RuntimeException failure;
+
+        Session(String fileName, OutputSink output, long budget) {
+            this.fileName = fileName;
+            this.budget = budget;
+            vm = new VirtualMachine(memorySize, memoryModel);
+            vm.setInput(input);
+            vm.setOutput(output);
+        }
+
+        /**
+         * Adds text to the end of the program's input, and wakes the program
+         * if it is waiting for it. Lines must end with a newline.
+         * @param text the text
+         */
+        public void offerInput(String text) {
+            input.offer(text);
+            wake();
+        }
+
+        /**
+         * Marks the end of the program's input. Reads past the end behave as
+         * they do at the end of a stream.
+         */
+        public void closeInput() {
+            input.close();
+            wake();
+        }
+
+        private synchronized void wake() {
+            if (parked) {
+                parked = false;
+                runQueue.add(this);
+            } else {
+                woken = true;
+            }
+        }
+
+        /**
+         * Stops the program, at its next safepoint if it is running, or at
+         * once if it is waiting for input or hasn't started. Does nothing if
+         * the session has already finished.
+         */
+        public void cancel() {
+            boolean stopNow;
+            synchronized (this) {
+                if (finished || cancelled) return;
+                cancelled = true;
+                stopNow = parked;
+                parked = false;
+            }
+            vm.interrupt();
+            if (stopNow) finish(null);
+        }
+
+        /**
+         * Checks whether the session was cancelled.
+         * @return true if and only if cancel() was called before the session
+         * finished
+         */
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Checks whether the program has halted, failed to load, or failed.
+         * @return true if and only if the session is over
+         */
+        public synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Waits for the session to finish.
+         * @throws InterruptedException if the thread is interrupted
+         */
+        public synchronized void awaitFinish() throws InterruptedException {
+            while (!finished)
+                wait();
+        }
+
+        /**
+         * Returns what went wrong if the program stopped because of an
+         * exception, such as reading an int past the end of its input.
+         * @return the exception, or null if there was none
+         */
+        public synchronized RuntimeException getFailure() {
+            return failure;
+        }
+
+        /**
+         * Checks whether the program stopped by executing halt, rather than
+         * because of a runtime error, an exception, its budget, or being
+         * cancelled. Only accurate once the session has finished.
+         * @return true if and only if the program executed halt
+         */
+        public synchronized boolean hasHalted() {
+            return vm.hasHalted();
+        }
+
+        /**
+         * Checks whether the program couldn't be loaded, for example because
+         * its .bin file is missing or unreadable.
+         * @return true if and only if loading failed
+         */
+        public synchronized boolean failedToLoad() {
+            return loadFailed;
+        }
+
+        /**
+         * Checks whether the program was stopped for running more
+         * instructions than its budget allowed.
+         * @return true if and only if the budget ran out
+         */
+        public synchronized boolean exceededBudget() {
+            return overBudget;
+        }
+
+        /**
+         * Returns the number of instructions the program has executed. Only
+         * accurate once the session has finished.
+         * @return the instruction count
+         */
+        public long getInstructionCount() {
+            return vm.getInstructionCount();
+        }
+
+        /**
+         * Runs one slice of the program, then requeues, parks, or finishes
+         * the session. Called only by carriers.
+         */
+        void runSlice() {
+            synchronized (this) {
+                woken = false;
+                if (cancelled) {
+                    finish(null);
+                    return;
+                }
+            }
+            int result;
+            try {
+                if (!loaded) {
+                    loaded = true;
+                    if (!vm.load(fileName)) {
+                        synchronized (this) {
+                            loadFailed = true;
+                        }
+                        finish(null);
+                        return;
+                    }
+                    // loading clears any interrupt from a cancel() that
+                    // came in while it ran
+                    synchronized (this) {
+                        if (cancelled) {
+                            finish(null);
+                            return;
+                        }
+                    }
+                }
+                result = vm.runSlice(Math.min(quantum,
+                        budget - vm.getInstructionCount()));
+            } catch (RuntimeException exc) {
+                vm.flush();
+                finish(exc);
+                return;
+            }
+            switch (result) {
+                case VirtualMachine.HALTED:
+                    vm.flush();
+                    finish(null);
+                    break;
+                case VirtualMachine.BLOCKED:
+                    synchronized (this) {
+                        if (woken || cancelled) runQueue.add(this);
+                        else parked = true;
+                    }
+                    break;
+                default:
+                    if (isCancelled()) {
+                        finish(null);
+                        break;
+                    }
+                    if (vm.getInstructionCount() < budget) {
+                        runQueue.add(this);
+                        break;
+                    }
+                    vm.flush();
+                    synchronized (this) {
+                        overBudget = true;
+                    }
+                    finish(null);
+            }
+        }
+
+        private synchronized void finish(RuntimeException exc) {
+            failure = exc;
+            finished = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Creates a new Scheduler with one carrier per core, the default
+     * quantum, and virtual machines with 10000 words of flat memory.
+     */
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM,
+                10000, VirtualMachine.FLAT_MEMORY);
+    }
+
+    /**
+     * Creates a new Scheduler and starts its carriers.
+     * @param numCarriers the number of carrier threads
+     * @param quantum the number of instructions a session runs before it
+     * yields
+     * @param memorySize the memory size of each session's virtual machine
+     * @param memoryModel the memory model of each session's virtual machine,
+     * as for the VirtualMachine(int, int) constructor
+     */
+    public Scheduler(int numCarriers, long quantum, int memorySize,
+            int memoryModel) {
+        if (numCarriers <= 0 || quantum <= 0)
+            throw new IllegalArgumentException(
+                    "Carriers and quantum must be positive");
+        this.quantum = quantum;
+        this.memorySize = memorySize;
+        this.memoryModel = memoryModel;
+        carriers = new Thread[numCarriers];
+        for (int i = 0; i < numCarriers; i++) {
+            carriers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true)
+                            runQueue.take().runSlice();
+                    } catch (InterruptedException exc) {
+                    }
+                }
+            }, "SAP carrier " + i);
+            carriers[i].setDaemon(true);
+            carriers[i].start();
+        }
+    }
+
+    /**
+     * Starts running a program in a new session.
+     * @param fileName the name of the program. .bin is automatically added
+     * to the end
+     * @param output where the program's output is written. It is written
+     * from the carrier threads
+     * @return the session
+     */
+    public Session submit(String fileName, OutputSink output) {
+        return submit(fileName, output, Long.MAX_VALUE);
+    }
+
+    /**
+     * Starts running a program in a new session, and stops it if it runs
+     * too long. The budget is checked where the program yields, so it can
+     * run a little over before it is stopped.
+     * @param fileName the name of the program. .bin is automatically added
+     * to the end
+     * @param output where the program's output is written. It is written
+     * from the carrier threads
+     * @param budget the most instructions the program may execute
+     * @return the session
+     */
+    public Session submit(String fileName, OutputSink output, long budget) {
+        Session session = new Session(fileName, output, budget);
+        runQueue.add(session);
+        return session;
+    }
+
+    /**
+     * Stops the carriers once they finish their current slices. Sessions
+     * that haven't finished never will.
+     */
+    public void shutdown() {
+        for (Thread carrier : carriers)
+            carrier.interrupt();
+    }
+}
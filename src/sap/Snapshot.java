@@ -0,0 +1,231 @@
+package sap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The complete state of a paused SAP program: the program counter, memory,
+ * registers, compare register, stack, and stack status. A snapshot can be
+ * saved to a .snap file and restored into any VirtualMachine with at least
+ * as much memory and the same number of registers, so that a program can be
+ * resumed, possibly many times, without repeating the work it did before the
+ * snapshot was taken.
+ *
+ * Memory is stored in pages, and pages that are all zero are left out.
+ * Snapshot files are big-endian 32-bit words: the magic number "SAPS", the
+ * format version, the memory size, the code size, the program counter, the
+ * compare register, the stack status, the number of registers and their
+ * values, the stack depth and its values from the bottom up, then the page
+ * size, the number of stored pages, and the index and words of each page.
+ * @author Ari Zerner
+ */
+public class Snapshot {
+
+    /**
+     * The first word of every snapshot file ("SAPS" in ASCII).
+     */
+    public static final int MAGIC = 0x53415053;
+    /**
+     * The version of the format written by this class.
+     */
+    public static final int VERSION = 1;
+    private static final int PAGE_SIZE = 256;
+
+    final int memorySize, codeSize, pc, compare, stackc;
+    final int[] registers, stack, pageStarts;
+    final int[][] pages;
+
+    /**
+     * Takes a snapshot. The arrays are copied.
+     * @param memory the start of memory, which must be a whole number of
+     * pages long if paged isn't null
+     * @param paged the rest of memory, or null if memory holds all of it
+     */
+    Snapshot(int[] memory, PagedMemory paged, int codeSize, int pc,
+            int compare, int stackc, int[] registers, int[] stack) {
+        memorySize = paged == null ? memory.length : paged.size();
+        this.codeSize = codeSize;
+        this.pc = pc;
+        this.compare = compare;
+        this.stackc = stackc;
+        this.registers = registers.clone();
+        this.stack = stack.clone();
+        List<Integer> starts = new ArrayList<Integer>();
+        List<int[]> contents = new ArrayList<int[]>();
+        for (int start = 0; start < memory.length; start += PAGE_SIZE) {
+            int end = Math.min(start + PAGE_SIZE, memory.length);
+            for (int i = start; i < end; i++) {
+                if (memory[i] != 0) {
+                    starts.add(start);
+                    contents.add(Arrays.copyOfRange(memory, start, end));
+                    break;
+                }
+            }
+        }
+        if (paged != null) {
+            for (int pageStart : paged.pageStarts()) {
+                if (pageStart < memory.length) continue;
+                int pageEnd = (int) Math.min((long) pageStart
+                        + PagedMemory.PAGE_SIZE, memorySize);
+                for (int start = pageStart; start < pageEnd;
+                        start += PAGE_SIZE) {
+                    int[] words = new int[Math.min(PAGE_SIZE, pageEnd - start)];
+                    boolean zero = true;
+                    for (int i = 0; i < words.length; i++)
+                        zero &= (words[i] = paged.get(start + i)) == 0;
+                    if (zero) continue;
+                    starts.add(start);
+                    contents.add(words);
+                }
+            }
+        }
+        pageStarts = new int[starts.size()];
+        for (int i = 0; i < pageStarts.length; i++)
+            pageStarts[i] = starts.get(i);
+        pages = contents.toArray(new int[contents.size()][]);
+    }
+
+    private Snapshot(int memorySize, int codeSize, int pc, int compare,
+            int stackc, int[] registers, int[] stack, int[] pageStarts,
+            int[][] pages) {
+        this.memorySize = memorySize;
+        this.codeSize = codeSize;
+        this.pc = pc;
+        this.compare = compare;
+        this.stackc = stackc;
+        this.registers = registers;
+        this.stack = stack;
+        this.pageStarts = pageStarts;
+        this.pages = pages;
+    }
+
+    /**
+     * Copies the saved memory into zeroed memory at least getMemorySize()
+     * words long.
+     * @param memory the start of memory
+     * @param paged the rest of memory, or null if memory holds all of it
+     */
+    void copyMemoryTo(int[] memory, PagedMemory paged) {
+        for (int i = 0; i < pages.length; i++) {
+            int start = pageStarts[i];
+            if (start + pages[i].length <= memory.length) {
+                System.arraycopy(pages[i], 0, memory, start, pages[i].length);
+                continue;
+            }
+            for (int j = 0; j < pages[i].length; j++) {
+                if (start + j < memory.length) memory[start + j] = pages[i][j];
+                else paged.set(start + j, pages[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Returns the memory size of the virtual machine the snapshot was taken
+     * from.
+     * @return the memory size in number of integers
+     */
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * Returns the address at which the program will resume.
+     * @return the program counter
+     */
+    public int getPC() {
+        return pc;
+    }
+
+    /**
+     * Writes this snapshot to a file.
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(memorySize);
+            out.writeInt(codeSize);
+            out.writeInt(pc);
+            out.writeInt(compare);
+            out.writeInt(stackc);
+            writeArray(out, registers);
+            writeArray(out, stack);
+            out.writeInt(PAGE_SIZE);
+            out.writeInt(pages.length);
+            for (int i = 0; i < pages.length; i++) {
+                out.writeInt(pageStarts[i] / PAGE_SIZE);
+                for (int word : pages[i])
+                    out.writeInt(word);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a snapshot from a file.
+     * @param file the file to read
+     * @return the snapshot
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read or isn't a valid snapshot
+     */
+    public static Snapshot read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a snapshot");
+            int version = in.readInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException("Unsupported snapshot version "
+                        + version);
+            int memorySize = in.readInt(), codeSize = in.readInt(),
+                    pc = in.readInt(), compare = in.readInt(),
+                    stackc = in.readInt();
+            int[] registers = readArray(in), stack = readArray(in);
+            int pageSize = in.readInt(), numPages = in.readInt();
+            if (memorySize < 0 || pageSize <= 0 || numPages < 0
+                    || numPages > (memorySize + pageSize - 1) / pageSize)
+                throw new IOException("Corrupt snapshot " + file);
+            int[] pageStarts = new int[numPages];
+            int[][] pages = new int[numPages][];
+            for (int i = 0; i < numPages; i++) {
+                long start = (long) in.readInt() * pageSize;
+                if (start < 0 || start >= memorySize)
+                    throw new IOException("Corrupt snapshot " + file);
+                pageStarts[i] = (int) start;
+                pages[i] = new int[Math.min(pageSize,
+                        memorySize - pageStarts[i])];
+                for (int j = 0; j < pages[i].length; j++)
+                    pages[i][j] = in.readInt();
+            }
+            return new Snapshot(memorySize, codeSize, pc, compare, stackc,
+                    registers, stack, pageStarts, pages);
+        } catch (EOFException exc) {
+            throw new IOException("Truncated snapshot " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeArray(DataOutputStream out, int[] array)
+            throws IOException {
+        out.writeInt(array.length);
+        for (int value : array)
+            out.writeInt(value);
+    }
+
+    private static int[] readArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 20)
+            throw new IOException("Corrupt snapshot");
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++)
+            array[i] = in.readInt();
+        return array;
+    }
+}
@@ -0,0 +1,41 @@
+package sap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Input read from a stream. Ints and lines are read through a Scanner,
+ * which is only created when one is first needed, and characters straight
+ * from the stream.
+ * @author Ari Zerner
+ */
+class StreamInput implements InputSource {
+
+    private final InputStream in;
+    private Scanner scan;
+
+    /**
+     * Creates a new StreamInput.
+     * @param in the stream to read from
+     */
+    StreamInput(InputStream in) {
+        this.in = in;
+    }
+
+    private Scanner scanner() {
+        if (scan == null) scan = new Scanner(in);
+        return scan;
+    }
+
+    public int readInt() {
+        return scanner().nextInt();
+    }
+
+    public int readChar() throws IOException {
+        return in.read();
+    }
+
+    public String readLine() {
+        return scanner().nextLine();
+    }
+}
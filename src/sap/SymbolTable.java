@@ -55,6 +55,20 @@ public class SymbolTable {
         return labels.get(address);
     }
     
+    /**
+     * Gets the address of the last symbol at or before an address.
+     * @param address
+     * @return the address of the closest symbol at or before the given
+     * address, or null if there is no such symbol.
+     */
+    public Integer getAddressAtOrBefore(int address) {
+        Integer closest = null;
+        for (Integer symbol: labels.keySet())
+            if (symbol <= address && (closest == null || symbol > closest))
+                closest = symbol;
+        return closest;
+    }
+
     /**
      * Returns an alphabetically sorted list of the symbols in this table.
      * Each symbol is on its own line in the format "symbol address".
@@ -64,10 +78,11 @@ public class SymbolTable {
         String[] labelArray =
                 labels.values().toArray(new String[labels.size()]);
         Arrays.sort(labelArray);
-        String list = "";
+        StringBuilder list = new StringBuilder();
         for (String label: labelArray)
-            list += label + " " + getAddress(label) + "\n";
-        return list;
+            list.append(label).append(' ').append(addresses.get(label))
+                    .append('\n');
+        return list.toString();
     }
     
     /**
@@ -79,9 +94,10 @@ public class SymbolTable {
         Integer[] addressArray =
                 addresses.values().toArray(new Integer[labels.size()]);
         Arrays.sort(addressArray);
-        String list = "";
+        StringBuilder list = new StringBuilder();
         for (Integer address: addressArray)
-            list += getLabel(address) + " " + address + "\n";
-        return list;
+            list.append(getLabel(address)).append(' ').append(address)
+                    .append('\n');
+        return list.toString();
     }
 }
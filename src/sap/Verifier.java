@@ -0,0 +1,113 @@
+package sap;
+
+import static sap.Language.*;
+
+/**
+ * Checks a loaded program before it runs. Every instruction that can be
+ * reached from the entry point, following both fall-through and branch
+ * targets, must have a valid opcode, must fit in the program, must name only
+ * registers that exist, and must use only memory addresses and jump targets
+ * that exist. Indirect addresses and return addresses depend on the values
+ * computed at runtime, so they are still checked when they are used, as is
+ * code reached only through ret or written while the program runs.
+ * @author Ari Zerner
+ */
+public class Verifier {
+
+    private final int[] memory;
+    private final int codeSize, memorySize, numRegisters;
+
+    private Verifier(int[] memory, int codeSize, int memorySize,
+            int numRegisters) {
+        this.memory = memory;
+        this.codeSize = codeSize;
+        this.memorySize = memorySize;
+        this.numRegisters = numRegisters;
+    }
+
+    /**
+     * Verifies a program.
+     * @param memory the memory the program has been loaded into, which may
+     * stop after the program
+     * @param codeSize the size of the program
+     * @param memorySize the size of the virtual machine's memory
+     * @param entry the address at which the program starts
+     * @param numRegisters the number of registers in the virtual machine
+     * @return a description of the first problem found, or null if the
+     * program is valid
+     */
+    public static String verify(int[] memory, int codeSize, int memorySize,
+            int entry, int numRegisters) {
+        return new Verifier(memory, codeSize, memorySize, numRegisters)
+                .verify(entry);
+    }
+
+    private String verify(int entry) {
+        boolean[] visited = new boolean[codeSize];
+        int[] work = new int[2 * codeSize + 1];
+        int pending = 0;
+        work[pending++] = entry;
+        while (pending > 0) {
+            int at = work[--pending];
+            if (at < 0 || at >= codeSize || visited[at]) continue;
+            visited[at] = true;
+            String problem = check(at);
+            if (problem != null) return problem;
+            int command = memory[at];
+            switch (command) {
+                case 28: // jmp
+                    work[pending++] = memory[at + 1];
+                    continue;
+                case 0: // halt
+                case 40: // ret
+                    continue;
+                case 29: // sojz
+                case 30: // sojnz
+                case 31: // aojz
+                case 32: // aojnz
+                    work[pending++] = memory[at + 2];
+                    break;
+                case 36: // jmpn
+                case 37: // jmpz
+                case 38: // jmpp
+                case 39: // jsr
+                case 57: // jmpne
+                    work[pending++] = memory[at + 1];
+                    break;
+            }
+            work[pending++] = at + 1 + getParamTypes(command).length;
+        }
+        return null;
+    }
+
+    /**
+     * Checks the instruction at the given address.
+     * @return a description of the problem, or null if there is none
+     */
+    private String check(int at) {
+        String sapCommand = getCommand(memory[at]);
+        if (sapCommand == null)
+            return "Invalid opcode " + memory[at] + " at address " + at;
+        int[] paramTypes = getParamTypes(memory[at]);
+        if (at + 1 + paramTypes.length > codeSize)
+            return "Incomplete " + sapCommand + " at address " + at;
+        for (int i = 0; i < paramTypes.length; i++) {
+            int operand = memory[at + 1 + i];
+            switch (paramTypes[i]) {
+                case REGISTER:
+                case INDIRECT:
+                    if (operand < 0 || operand >= numRegisters)
+                        return "Nonexistent register " + operand + " in "
+                                + sapCommand + " at address " + at;
+                    break;
+                case LABEL:
+                    if (sapCommand.equals("movar")) break; // only a value
+                    if (operand < 0 || operand >= memorySize)
+                        return "Nonexistent memory address " + operand
+                                + " in " + sapCommand + " at address " + at;
+                    break;
+            }
+        }
+        return null;
+    }
+}
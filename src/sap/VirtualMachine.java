@@ -9,23 +9,138 @@ import static sap.Language.*;
  */
 public class VirtualMachine {
     private int pc, memory[], registers[], compare, stackc;
-    private queuestack.Stack stack;
-    private Scanner scan = new Scanner(System.in);
+    private IntStack stack;
+    private int memorySize;
+    private final PagedMemory paged; // beyond memory, or null if it's all flat
+    private InputSource input = new StreamInput(System.in);
+    private InputQueue queue; // the input, if the program may wait for it
+    private final OutputBuffer out = new OutputBuffer(new OutputSink() {
+        public void write(char[] chars, int offset, int length) {
+            System.out.print(new String(chars, offset, length));
+            System.out.flush();
+        }
+    });
+    private InputSource dbgIn; // the debugger's commands, if not from input
+    private OutputBuffer dbgOut = out; // the debugger's messages
     private class Halt extends RuntimeException {}
     
+    /*
+     * Pre-decoded instruction cache. The record for the instruction at address
+     * a starts at decoded[a * RECORD_SIZE] and holds the opcode, up to four
+     * operands, and the address of the following instruction. An instruction
+     * is decoded at most once, until a write to one of its words invalidates
+     * it, and afterwards is executed straight from its record.
+     */
+    private static final int RECORD_SIZE = 6, NEXT = 5;
+    private static final int UNDECODED = -1;
+    private static final int SLOW = -2; // run through interpret() instead
+    private static final int MAX_RECORD_LENGTH = 9; // words covered by a record
+    private int codeSize;
+    private int[] decoded;
+    private boolean[] decodedWord; // covered by some decoded instruction
+    
+    /*
+     * Superinstructions. A decoded instruction that starts one of the common
+     * sequences below is fused with the instructions after it: its record
+     * holds the fused opcode, the operands of the whole sequence, and the
+     * address after the sequence. The other instructions keep their own
+     * records, so jumping into the middle of a sequence still works. Only the
+     * last instruction of a sequence may write to memory, so a sequence can't
+     * modify itself while it runs.
+     */
+    private static final int FUSED = 64; // the lowest fused opcode
+    private static final int CMPIR_JMPN = 64, CMPIR_JMPZ = 65, CMPIR_JMPP = 66,
+            CMPIR_JMPNE = 67, CMPRR_JMPN = 68, CMPRR_JMPZ = 69,
+            CMPRR_JMPP = 70, CMPRR_JMPNE = 71, CMPMR_JMPN = 72,
+            CMPMR_JMPZ = 73, CMPMR_JMPP = 74, CMPMR_JMPNE = 75;
+    private static final int ADDIR_CMPIR_JMPN = 76, ADDIR_CMPIR_JMPNE = 77,
+            ADDIR_CMPMR_JMPN = 78, ADDIR_CMPMR_JMPNE = 79;
+    private static final int MOVXR_ADDIR = 80, MOVAR_ADDRR_MOVXR = 81,
+            MOVAR_ADDRR_MOVRX = 82;
+    
+    /*
+     * Compiled blocks. Once a backward jump to an address has been taken
+     * COMPILE_THRESHOLD times, the code starting there is compiled to JVM
+     * bytecode by BlockCompiler, and its record is changed to COMPILED with
+     * the index of the block in place of its third operand. The opcode of a
+     * COMPILED record is still in memory, since writing to it would have
+     * invalidated the block.
+     */
+    private static final int COMPILED = -3;
+    private static final int COMPILE_THRESHOLD = 1000;
+    
+    /*
+     * Safepoints. Requests from other threads, the end of a slice, and the
+     * instruction and time limits are all checked at backward jumps, since
+     * every loop passes through one, and before reads, which may wait. The
+     * run loops only read pollRequested and compare the instruction count
+     * with pollAt there, and call safepoint() when either says to. Compiled
+     * blocks check their own count at their backward branches, and return
+     * once they have run for POLL_INTERVAL instructions or reached pollAt,
+     * so no program runs more than about POLL_INTERVAL instructions between
+     * safepoints. The clock is read every POLL_INTERVAL instructions.
+     */
+    private static final int POLL_INTERVAL = 1 << 16;
+    private boolean compiling = true;
+    private boolean verifying = true;
+    private int[] heat; // backward jumps taken to each address
+    private CompiledBlock[] blocks;
+    private int[] blockStart, blockEnd;
+    private int numBlocks;
+    private final int[] blockState = new int[1];
+    private final long[] blockExecuted = new long[1];
+    private long instructionCount;
+    private boolean profiling;
+    private Profiler profiler;
+    private String snapshotName; // saved at the next brk outside the debugger
+    private String recordName, replayName; // input logs, without .inlog
+    private InputLog recording, replay;
+    
     private boolean dbg, watch;
+    private boolean halted; // the program ended by executing halt
+    private boolean profileWritten; // its profile was written to a .prof
+    private volatile boolean attachRequested, interruptRequested;
+    private volatile boolean pollRequested; // either of the above was asked
+    private long sliceEnd = Long.MAX_VALUE; // instruction count to yield at
+    private long instructionLimit = Long.MAX_VALUE, timeLimit; // 0: no limit
+    private long limitEnd = Long.MAX_VALUE; // instruction count to stop at
+    private long deadline; // System.nanoTime() to stop at, if timeLimit > 0
+    private long pollAt = Long.MAX_VALUE; // instruction count for safepoint()
+    private boolean blocked; // run() returned to wait for input
+    private String programName;
     private SymbolTable symTable = new SymbolTable();
     private Set<Integer> breakpoints = new TreeSet<Integer>(),
             memWatch = new TreeSet<Integer>(),
             regWatch = new TreeSet<Integer>();
     
     /**
-     * Creates a new virtual machine with the given memory size, 10 registers,
-     * and a stack with 400 slots.
+     * One of the memory models for the VirtualMachine(int, int) constructor.
+     * FLAT_MEMORY allocates all of memory up front. HEAP_PAGES and
+     * DIRECT_PAGES keep the loaded program in an array, as FLAT_MEMORY does,
+     * and the rest of memory in pages that are allocated when they are first
+     * written, on the Java heap or outside it. Resetting paged memory takes
+     * time in proportion to the pages that were written, so these models
+     * suit address spaces much larger than programs actually use.
+     */
+    public static final int FLAT_MEMORY = 0, HEAP_PAGES = 1, DIRECT_PAGES = 2;
+    
+    /**
+     * Creates a new virtual machine with the given memory size, flat memory,
+     * 10 registers, and a stack with 400 slots.
      * @param memorySize the maximum memory capacity in number of integers
      */
     public VirtualMachine(int memorySize) {
-        this(memorySize, 10, 400);
+        this(memorySize, FLAT_MEMORY);
+    }
+    
+    /**
+     * Creates a new virtual machine with the given memory size and memory
+     * model, 10 registers, and a stack with 400 slots.
+     * @param memorySize the maximum memory capacity in number of integers
+     * @param memoryModel FLAT_MEMORY, HEAP_PAGES, or DIRECT_PAGES
+     */
+    public VirtualMachine(int memorySize, int memoryModel) {
+        this(memorySize, 10, 400, memoryModel);
     }
     
     /**
@@ -33,11 +148,232 @@ public class VirtualMachine {
      * @param memorySize the maximum memory capacity in number of integers
      * @param numRegisters the number of registers
      * @param stackLength the length of the stack
+     * @param memoryModel FLAT_MEMORY, HEAP_PAGES, or DIRECT_PAGES
      */
-    private VirtualMachine(int memorySize, int numRegisters, int stackLength) {
-        memory = new int[memorySize];
+    private VirtualMachine(int memorySize, int numRegisters, int stackLength,
+            int memoryModel) {
+        this.memorySize = memorySize;
+        if (memoryModel == FLAT_MEMORY) {
+            memory = new int[memorySize];
+            paged = null;
+        } else {
+            memory = new int[0];
+            paged = new PagedMemory(memorySize, memoryModel == DIRECT_PAGES);
+        }
         registers = new int[numRegisters];
-        stack = new queuestack.Stack(stackLength);
+        stack = new IntStack(stackLength);
+    }
+    
+    /**
+     * Sets whether frequently executed code is compiled to JVM bytecode.
+     * Compilation is on by default and never happens while debugging.
+     * @param compile whether to compile frequently executed code
+     */
+    public void setCompiling(boolean compile) {
+        compiling = compile;
+    }
+    
+    /**
+     * Sets whether programs are verified when they are loaded. A program that
+     * fails verification isn't run; instead, the first problem found is
+     * reported. Verification is on by default. Without it, invalid
+     * instructions are reported only when they are executed.
+     * @param verify whether to verify programs
+     * @see Verifier
+     */
+    public void setVerifying(boolean verify) {
+        verifying = verify;
+    }
+    
+    /**
+     * Sets where the program's input, and unless setDebugger says otherwise
+     * the debugger's commands, are read from. Input comes from System.in by
+     * default.
+     * @param in the source of input
+     */
+    public void setInput(InputStream in) {
+        setInput(new StreamInput(in));
+    }
+    
+    /**
+     * Sets where the program's input, and unless setDebugger says otherwise
+     * the debugger's commands, are read from.
+     * @param source the source of input
+     */
+    public void setInput(InputSource source) {
+        input = source;
+        queue = null;
+    }
+    
+    /**
+     * Makes the program read its input from a queue. Instead of blocking when
+     * the queue doesn't yet hold what a read instruction needs, runSlice()
+     * returns BLOCKED.
+     * @param queue the source of input
+     */
+    void setInput(InputQueue queue) {
+        input = queue;
+        this.queue = queue;
+    }
+    
+    /**
+     * Sets where the program's output and the debugger's messages are written.
+     * Output goes to System.out by default.
+     * @param sink the destination for output
+     */
+    public void setOutput(OutputSink sink) {
+        out.setSink(sink);
+    }
+    
+    /**
+     * Gives the debugger its own input and output, such as a separate
+     * console, instead of sharing the program's.
+     * @param commands where the debugger's commands are read from, or null
+     * to read them from the program's input
+     * @param messages where the debugger's messages are written, or null to
+     * write them to the program's output
+     */
+    public void setDebugger(InputSource commands, OutputSink messages) {
+        dbgIn = commands;
+        dbgOut = messages == null ? out : new OutputBuffer(messages);
+    }
+    
+    /**
+     * Sets whether programs are profiled. A profiled program runs one
+     * instruction at a time, without compilation, while counting how often
+     * each address and opcode is executed. When it halts, a report of its hot
+     * spots is written to a .prof file next to the .bin file.
+     * @param profile whether to profile programs
+     */
+    public void setProfiling(boolean profile) {
+        profiling = profile;
+    }
+    
+    /**
+     * Returns the number of instructions executed by the program that is
+     * running, or by the last one that ran.
+     * @return the number of instructions executed
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+    
+    /**
+     * Sets the most values the stack can hold, which is 400 by default. Each
+     * subroutine call takes 6. Room is only allocated as the stack grows, so
+     * a large capacity costs nothing until a program uses it.
+     * @param capacity the capacity of the stack
+     */
+    public void setStackCapacity(int capacity) {
+        stack = new IntStack(capacity);
+    }
+    
+    /**
+     * Checks whether the program that ran last ended by executing halt,
+     * rather than by failing to load, by an error, or by leaving the
+     * debugger.
+     * @return true if and only if the program halted
+     */
+    public boolean hasHalted() {
+        return halted;
+    }
+    
+    /**
+     * Checks whether a profile of the program that ran last was written. It
+     * isn't if profiling is off, the program couldn't be loaded, or the
+     * .prof file couldn't be written.
+     * @return true if and only if the .prof file was written
+     */
+    public boolean hasWrittenProfile() {
+        return profileWritten;
+    }
+    
+    /**
+     * Returns the most values that were on the stack at once during the
+     * program that is running, or the last one that ran.
+     * @return the stack's high-water mark
+     */
+    public int getStackHighWater() {
+        return stack.getHighWater();
+    }
+    
+    /**
+     * Asks the running program to break into the debugger. The fast run loop
+     * only checks for this at safepoints, such as backward jumps, so the
+     * debugger attaches at the next one. May be called from any thread.
+     */
+    public void attachDebugger() {
+        attachRequested = true;
+        pollRequested = true;
+    }
+    
+    /**
+     * Asks the running program to stop, as if it had halted, at its next
+     * safepoint: a backward jump, a read, or at most a few tens of thousands
+     * of instructions away. A read that is already waiting for input isn't
+     * interrupted by this, but the thread running the program may be. May be
+     * called from any thread.
+     */
+    public void interrupt() {
+        interruptRequested = true;
+        pollRequested = true;
+    }
+    
+    /**
+     * Sets the most instructions the following programs may execute. A
+     * program that reaches the limit is stopped with an error message. Like
+     * interrupt(), the limit is enforced at safepoints, so a program may run
+     * a little over it.
+     * @param limit the most instructions, or 0 for no limit
+     */
+    public void setInstructionLimit(long limit) {
+        instructionLimit = limit > 0 ? limit : Long.MAX_VALUE;
+    }
+    
+    /**
+     * Sets how long the following programs may run, including any time
+     * spent waiting for input. A program that runs out of time is stopped
+     * with an error message at its next safepoint, as for interrupt().
+     * @param millis the most milliseconds, or 0 for no limit
+     */
+    public void setTimeLimit(long millis) {
+        timeLimit = Math.max(millis, 0);
+    }
+    
+    /**
+     * Makes the next program save a snapshot the first time it executes brk
+     * outside the debugger, for example once it has finished setting up. The
+     * program keeps running afterwards.
+     * @param fileName the name of the snapshot file, or null for no snapshot.
+     * .snap is automatically added to the end
+     */
+    public void setSnapshotOnBreak(String fileName) {
+        snapshotName = fileName;
+    }
+    
+    /**
+     * Makes the following programs record their input, and the instruction
+     * count at which they read each piece of it, to a .inlog file. The log
+     * is written when the program stops.
+     * @param fileName the name of the log file, or null to stop recording.
+     * .inlog is automatically added to the end
+     */
+    public void setInputRecording(String fileName) {
+        recordName = fileName;
+    }
+    
+    /**
+     * Makes the following programs read their input from a .inlog file
+     * written by setInputRecording instead of from the input stream. A
+     * program that tries to read input at a different instruction count than
+     * it did when the log was recorded, or that reads past the end of the
+     * log, stops with an error, so a replayed run is exactly the same as the
+     * recorded one.
+     * @param fileName the name of the log file, or null to stop replaying.
+     * .inlog is automatically added to the end
+     */
+    public void setInputReplay(String fileName) {
+        replayName = fileName;
     }
     
     /**
@@ -47,14 +383,241 @@ public class VirtualMachine {
      * @param debug whether to runBytecodeFile in debug mode.
      */
     public void runBytecodeFile(String fileName, boolean debug) {
+        execute(fileName, debug, null);
+    }
+    
+    /**
+     * Resumes a program from a snapshot file, such as one saved by the
+     * debugger's snap command or by setSnapshotOnBreak.
+     * @param fileName the name of the snapshot. This method automatically adds
+     * .snap to the end, and reads the symbol table from the .sym file with
+     * the same name when debugging
+     * @param debug whether to run in debug mode
+     */
+    public void runSnapshot(String fileName, boolean debug) {
+        String snapFile = fileName + ".snap";
+        Snapshot snapshot;
+        try {
+            snapshot = Snapshot.read(new File(snapFile));
+        } catch (FileNotFoundException exc) {
+            out.println("Error: Unable to find " + snapFile);
+            out.flush();
+            return;
+        } catch (IOException exc) {
+            out.println("Error: Unable to read " + snapFile);
+            out.flush();
+            return;
+        }
+        execute(fileName, debug, snapshot);
+    }
+    
+    /**
+     * Resumes a program from a snapshot that has already been read. The
+     * snapshot isn't changed, so it can be run any number of times.
+     * @param snapshot the snapshot
+     */
+    public void runSnapshot(Snapshot snapshot) {
+        execute(null, false, snapshot);
+    }
+    
+    /**
+     * Runs a program, loading it from its .bin file or from a snapshot.
+     * @param fileName the name of the program, or null if it has none
+     */
+    private void execute(String fileName, boolean debug, Snapshot snapshot) {
+        try {
+            if (!start(fileName, debug, snapshot)) return;
+            if (dbg) debugPrompt();
+            while (true) {
+                if (dbg) debugRun();
+                else if (profiler != null) profileRun();
+                else run();
+            }
+        } catch (Halt h) {
+        } finally {
+            if (profiler != null) writeProfile();
+            if (recording != null) writeRecording();
+            out.flush();
+            dbgOut.flush();
+        }
+    }
+    
+    /**
+     * Loads a program from its .bin file or from a snapshot and gets it ready
+     * to run. Prints an error message if it can't be loaded.
+     * @return whether the program is ready to run
+     */
+    private boolean start(String fileName, boolean debug, Snapshot snapshot) {
         dbg = debug;
+        attachRequested = false;
+        interruptRequested = false;
+        pollRequested = false;
+        programName = fileName;
+        instructionCount = 0;
+        halted = false;
+        profileWritten = false;
+        profiler = null;
         reset();
-        if (!loadProgram(fileName)) return;
-        if (dbg && !loadSymbols(fileName)) return;
+        recording = recordName == null ? null : new InputLog();
+        if (!openReplay()) return false;
+        if (snapshot == null ? !loadProgram(fileName) : !restore(snapshot))
+            return false;
+        if (snapshot == null && verifying && !verify()) return false;
+        if (dbg && !loadSymbols(fileName)) return false;
+        predecode();
+        if (profiling && fileName != null)
+            profiler = new Profiler(memory.length);
+        limitEnd = instructionLimit;
+        deadline = System.nanoTime() + timeLimit * 1000000;
+        schedulePoll();
+        return true;
+    }
+    
+    /**
+     * The results of runSlice(). YIELDED means the program used up its
+     * instructions for the slice, BLOCKED that it is waiting for input from
+     * its queue, and HALTED that it has finished.
+     */
+    static final int YIELDED = 0, BLOCKED = 1, HALTED = 2;
+    
+    /**
+     * Loads a program to be run a slice at a time by runSlice(), without
+     * debugging or profiling.
+     * @param fileName the name of the program. .bin is automatically added
+     * to the end
+     * @return whether the program was loaded; if not, an error message has
+     * been printed
+     */
+    boolean load(String fileName) {
+        boolean profile = profiling;
+        profiling = false;
         try {
-            if (dbg) debugPrompt();
-            while (true) doCommand();
-        } catch (Halt h) {}
+            return start(fileName, false, null);
+        } finally {
+            profiling = profile;
+            out.flush();
+        }
+    }
+    
+    /**
+     * Runs the loaded program for about the given number of instructions.
+     * The program only stops at safepoints, such as backward jumps, where a
+     * loop could keep it running indefinitely, so a slice can run over by up
+     * to one pass through straight-line code.
+     * @param quantum the number of instructions to run
+     * @return YIELDED, BLOCKED, or HALTED
+     */
+    int runSlice(long quantum) {
+        sliceEnd = quantum < Long.MAX_VALUE - instructionCount
+                ? instructionCount + quantum : Long.MAX_VALUE;
+        schedulePoll();
+        blocked = false;
+        try {
+            run();
+        } catch (Halt h) {
+            return HALTED;
+        } finally {
+            sliceEnd = Long.MAX_VALUE;
+            schedulePoll();
+            if (blocked) out.flush();
+        }
+        return blocked ? BLOCKED : YIELDED;
+    }
+    
+    /**
+     * Flushes the program's output.
+     */
+    void flush() {
+        out.flush();
+    }
+    
+    /**
+     * Restores the state saved in a snapshot. Prints an error message if the
+     * snapshot doesn't fit this virtual machine.
+     * @return whether the snapshot was restored
+     */
+    private boolean restore(Snapshot snapshot) {
+        if (snapshot.memorySize > memorySize
+                || snapshot.registers.length != registers.length
+                || snapshot.codeSize > snapshot.memorySize) {
+            out.println("Error: Snapshot doesn't fit this virtual machine");
+            return false;
+        }
+        fitProgram(snapshot.codeSize);
+        snapshot.copyMemoryTo(memory, paged);
+        System.arraycopy(snapshot.registers, 0, registers, 0,
+                registers.length);
+        for (int value : snapshot.stack)
+            push(value);
+        pc = snapshot.pc;
+        compare = snapshot.compare;
+        stackc = snapshot.stackc;
+        codeSize = snapshot.codeSize;
+        return true;
+    }
+    
+    /**
+     * Saves the current state of the program to a .snap file. Prints an error
+     * message if it can't be written.
+     * @param fileName the name of the file. .snap is automatically added to
+     * the end
+     */
+    private void saveSnapshot(String fileName) {
+        try {
+            new Snapshot(memory, paged, codeSize, pc, compare, stackc,
+                    registers, stack.toArray())
+                    .write(new File(fileName + ".snap"));
+        } catch (IOException exc) {
+            out.println("Error: Unable to write " + fileName + ".snap");
+        }
+    }
+    
+    /**
+     * Saves the snapshot requested by setSnapshotOnBreak, if any. Called when
+     * brk is executed outside the debugger.
+     */
+    private void breakWithoutDebugger() {
+        if (snapshotName == null) return;
+        String fileName = snapshotName;
+        snapshotName = null;
+        saveSnapshot(fileName);
+    }
+    
+    /**
+     * Reads the input log requested by setInputReplay, if any. Prints an
+     * error message if it can't be read.
+     * @return whether the log was read
+     */
+    private boolean openReplay() {
+        replay = null;
+        if (replayName == null) return true;
+        String logFile = replayName + ".inlog";
+        try {
+            replay = InputLog.read(new File(logFile));
+            return true;
+        } catch (FileNotFoundException exc) {
+            out.println("Error: Unable to find " + logFile);
+        } catch (IOException exc) {
+            out.println("Error: Unable to read " + logFile);
+        }
+        return false;
+    }
+    
+    private void writeRecording() {
+        try {
+            recording.write(new File(recordName + ".inlog"));
+        } catch (IOException exc) {
+            out.println("Error: Unable to write " + recordName + ".inlog");
+        }
+    }
+    
+    private void writeProfile() {
+        try {
+            profiler.writeReport(programName, instructionCount, stack);
+            profileWritten = true;
+        } catch (IOException exc) {
+            out.println("Error: Unable to write " + programName + ".prof");
+        }
     }
     
     /**
@@ -62,13 +625,14 @@ public class VirtualMachine {
      * If debugging, also clears breakpoints and symbol table.
      */
     private void reset() {
-        for (int i = 0; i < memory.length; i++)
-            memory[i] = 0;
+        Arrays.fill(memory, 0);
+        if (paged != null) paged.clear();
         for (int i = 0; i < registers.length; i++)
             registers[i] = 0;
         compare = 0;
-        while (!stack.isEmpty())
-            pop();
+        codeSize = 0;
+        stack.clear();
+        stackc = 0;
         if (dbg) {
             breakpoints.clear();
             symTable.clear();
@@ -86,26 +650,50 @@ public class VirtualMachine {
     private boolean loadProgram(String fileName) {
         fileName = fileName + ".bin";
         try {
-            Scanner bin = new Scanner(new FileInputStream(fileName));
-            int size = bin.nextInt();
-            if (size >= memory.length) {
-                System.out.println("Error: Program is too large");
+            BinaryImage bin = BinaryImage.read(new File(fileName));
+            int size = bin.getSize();
+            if (size >= memorySize) {
+                out.println("Error: Program is too large");
                 return false;
             }
-            pc = bin.nextInt();
-            for (int i = 0; i < size; i++)
-                memory[i] = bin.nextInt();
-            bin.close();
+            pc = bin.getEntry();
+            fitProgram(size);
+            bin.copyTo(memory);
+            codeSize = size;
         } catch (FileNotFoundException exc) {
-            System.out.println("Error: Unable to find " + fileName);
+            out.println("Error: Unable to find " + fileName);
             return false;
         } catch (Exception exc) {
-            System.out.println("Error: Unable to read " + fileName);
+            out.println("Error: Unable to read " + fileName);
             return false;
         }
         return true;
     }
     
+    /**
+     * Makes sure that a program of the given size lies in the memory array.
+     * With paged memory, the array is grown or shrunk to the program rounded
+     * up to whole pages. Must be called right after reset().
+     */
+    private void fitProgram(int size) {
+        if (paged == null) return;
+        int pages = (size + PagedMemory.PAGE_SIZE - 1) / PagedMemory.PAGE_SIZE;
+        int length = (int) Math.min((long) pages * PagedMemory.PAGE_SIZE,
+                memorySize);
+        if (memory.length != length) memory = new int[length];
+    }
+    
+    /**
+     * Verifies the loaded program. Prints an error message if it is invalid.
+     * @return whether the program is valid
+     */
+    private boolean verify() {
+        String problem = Verifier.verify(memory, codeSize, memorySize, pc,
+                registers.length);
+        if (problem != null) out.println("Error: " + problem);
+        return problem == null;
+    }
+    
     /*
      * The following methods are for the debugger.
      */
@@ -121,22 +709,25 @@ public class VirtualMachine {
             }
             sym.close();
         } catch (FileNotFoundException exc) {
-            System.out.println("Error: Unable to find " + fileName);
+            dbgOut.println("Error: Unable to find " + fileName);
             return false;
         } catch (Exception exc) {
-            System.out.println("Error: Unable to read " + fileName);
+            dbgOut.println("Error: Unable to read " + fileName);
             return false;
         }
         return true;
     }
     
     private void debugPrompt() {
-        System.out.print("dbg " + pc);
+        out.flush();
+        dbgOut.print("dbg " + pc);
         String label = symTable.getLabel(pc);
         if (label != null)
-            System.out.print('(' + label + ')');
-        System.out.print('>');
-        String line = scan.nextLine(), command, param;
+            dbgOut.print('(' + label + ')');
+        dbgOut.print('>');
+        dbgOut.flush();
+        String line = (dbgIn != null ? dbgIn : input).readLine(), command,
+                param;
         int spaceIndex = line.indexOf(' ');
         if (spaceIndex > 0) {
             command = line.substring(0, spaceIndex);
@@ -162,20 +753,25 @@ public class VirtualMachine {
                 int start = parseLoc(params.next());
                 int end = parseLoc(params.next());
                 if (start < 0) start = 0;
-                if (end >= memory.length) end = memory.length - 1;
-                System.out.println("Memory:");
+                if (end >= memorySize) end = memorySize - 1;
+                dbgOut.println("Memory:");
                 for (int i = start; i <= end; i++)
-                    System.out.println("@" + i + ": " + memory[i]);
+                    dbgOut.println("@" + i + ": " + peek(i));
             } else if (command.equalsIgnoreCase("dumpr")) {
-                System.out.println("Registers:");
+                dbgOut.println("Registers:");
                 for (int i = 0; i < registers.length; i++)
-                    System.out.println("r" + i + ": " + registers[i]);
+                    dbgOut.println("r" + i + ": " + registers[i]);
             } else if (command.equalsIgnoreCase("exit")) {
                 throw new Halt();
+            } else if (command.equalsIgnoreCase("detach")) {
+                dbg = false;
+                go = true;
+            } else if (command.equalsIgnoreCase("snap")) {
+                saveSnapshot(params.next());
             } else if (command.equalsIgnoreCase("deas")) {
                 deassemble(parseLoc(params.next()), parseLoc(params.next()));
             } else if (command.equalsIgnoreCase("brkt")) {
-                System.out.println("Breakpoints: " + breakpoints);
+                dbgOut.println("Breakpoints: " + breakpoints);
             } else if (command.equalsIgnoreCase("sbrk")) {
                 breakpoints.add(parseLoc(params.next()));
             } else if (command.equalsIgnoreCase("cbrk")) {
@@ -196,7 +792,7 @@ public class VirtualMachine {
                 watch = false;
             } else if (command.equalsIgnoreCase("swchm")) {
                 int loc = parseLoc(params.next());
-                if (loc >= 0 && loc < memory.length)
+                if (loc >= 0 && loc < memorySize)
                     memWatch.add(loc);
                 watch = true;
             } else if (command.equalsIgnoreCase("swchr")) {
@@ -211,27 +807,27 @@ public class VirtualMachine {
                 int reg = parseReg(params.next());
                     regWatch.remove(reg);
             } else if (command.equalsIgnoreCase("wcht")) {
-                System.out.println("Watch variables:");
+                dbgOut.println("Watch variables:");
                 Iterator<Integer> memPoints = memWatch.iterator(),
                         regPoints = regWatch.iterator();
                 while (memPoints.hasNext()) {
                     int pt = memPoints.next();
-                    System.out.println("@" + pt + ": " + memory[pt]);
+                    dbgOut.println("@" + pt + ": " + peek(pt));
                 }
                 while (regPoints.hasNext()) {
                     int pt = regPoints.next();
-                    System.out.println("r" + pt + ": " + registers[pt]);
+                    dbgOut.println("r" + pt + ": " + registers[pt]);
                 }
             } else if (command.equalsIgnoreCase("cwcht")) {
                 memWatch.clear();
                 regWatch.clear();
             } else {
-                System.out.println("Unrecognized command: " + command);
+                dbgOut.println("Unrecognized command: " + command);
             }
         } catch (InputMismatchException exc) {
-            System.out.println("Bad argument.");
+            dbgOut.println("Bad argument.");
         } catch (NoSuchElementException exc) {
-            System.out.println("Not enough arguments.");
+            dbgOut.println("Not enough arguments.");
         }
         if (!go) debugPrompt();
     }
@@ -263,47 +859,56 @@ public class VirtualMachine {
         if (start < 0) {
             start = 0;
         }
-        if (end >= memory.length) {
-            end = memory.length - 1;
+        if (end >= memorySize) {
+            end = memorySize - 1;
         }
         for (int i = start; i <= end; i++) {
-            String sapCommand = getCommand(memory[i]);
+            String sapCommand = getCommand(peek(i));
             if (sapCommand == null) {
-                System.out.println("Error: Unrecognized command");
+                dbgOut.println("Error: Unrecognized command");
                 break;
             }
             String Label = symTable.getLabel(i);
             if (Label != null)
-                System.out.print(Label + ": ");
-            System.out.print(sapCommand);
+                dbgOut.print(Label + ": ");
+            dbgOut.print(sapCommand);
             for (int pt : getParamTypes(sapCommand))
                 switch (pt) {
                     case REGISTER:
-                        System.out.print(" r" + memory[++i]);
+                        dbgOut.print(" r" + peek(++i));
                         break;
                     case IMMEDIATE:
-                        System.out.print(" #" + memory[++i]);
+                        dbgOut.print(" #" + peek(++i));
                         break;
                     case LABEL:
-                        String label = symTable.getLabel(memory[++i]);
-                        System.out.print(" " +
-                                (label != null ? label : "#" + memory[i]));
+                        String label = symTable.getLabel(peek(++i));
+                        dbgOut.print(" " +
+                                (label != null ? label : "#" + peek(i)));
                         break;
                     case INDIRECT:
-                        System.out.print(" r" + memory[++i]);
+                        dbgOut.print(" r" + peek(++i));
                         break;
                 }
-            System.out.println();
+            dbgOut.println();
         }
     }
     
+    /**
+     * Reads memory for the debugger, which has already checked the address.
+     */
+    private int peek(int index) {
+        return index < memory.length ? memory[index] : paged.get(index);
+    }
+    
     private void printDebugHelp() {
-        System.out.print("go - Begin execution at current location\n"
+        dbgOut.print("go - Begin execution at current location\n"
                 + "go <loc1> - Begin execution at <loc1>\n"
                 + "dump <loc1> <loc2> - Dump memory locations between\n\t"
                 + "<loc1> and <loc2> inclusive\n"
                 + "dumpr - Dump registers\n"
                 + "exit - Exit debugger\n"
+                + "detach - Continue execution without the debugger\n"
+                + "snap <filename> - Save a snapshot to <filename>.snap\n"
                 + "deas <loc1> <loc2> - Deassemble memory locations between\n\t"
                 + "<loc1> and <loc2> inclusive\n"
                 + "brkt - List breakpoints\n"
@@ -337,10 +942,12 @@ public class VirtualMachine {
     } 
     
     private int getMemory(int index) {
+        if (index >= memory.length && index < memorySize)
+            return paged.get(index);
         try {
             return memory[index];
         } catch (ArrayIndexOutOfBoundsException exc) {
-            System.out.println("Error: Attmepted to access nonexistent "
+            out.println("Error: Attmepted to access nonexistent "
                     + "memory address " + index);
             throw new Halt();
         }
@@ -351,13 +958,18 @@ public class VirtualMachine {
     }
     
     private void setMemory(int value, int index) {
+        if (index >= memory.length && index < memorySize) {
+            paged.set(index, value);
+            return;
+        }
         try {
             memory[index] = value;
         } catch (ArrayIndexOutOfBoundsException exc) {
-            System.out.println("Error: Attmepted to access nonexistent "
+            out.println("Error: Attmepted to access nonexistent "
                     + "memory address " + index);
             throw new Halt();
         }
+        if (index < codeSize && decodedWord[index]) invalidate(index);
     }
     
     private int getRegister() {
@@ -368,7 +980,7 @@ public class VirtualMachine {
         try {
             return registers[index];
         } catch (ArrayIndexOutOfBoundsException exc) {
-            System.out.println("Error: Attmepted to access nonexistent "
+            out.println("Error: Attmepted to access nonexistent "
                     + "register " + index);
             throw new Halt();
         }
@@ -382,7 +994,7 @@ public class VirtualMachine {
         try {
             registers[index] = value;
         } catch (ArrayIndexOutOfBoundsException exc) {
-            System.out.println("Error: Attmepted to access nonexistent "
+            out.println("Error: Attmepted to access nonexistent "
                     + "register " + index);
             throw new Halt();
         }
@@ -442,17 +1054,96 @@ public class VirtualMachine {
     
     private int divide(int i, int index) {
         if (i == 0) {
-            System.out.println("Error: Attempted to divide by zero");
+            out.println("Error: Attempted to divide by zero");
             throw new Halt();
         }
         setRegister(getRegister(index) / i, index);
         return registers[index];
     }
     
+    /*
+     * Block operations. Each one checks its whole range once and then works
+     * on the memory array in bulk. If part of the range isn't in the array,
+     * because it doesn't exist or is in paged memory, it goes word by word
+     * instead, so that the words before a bad address are still processed
+     * and the error names the first bad address.
+     */
+    
+    private boolean inRange(int start, int count) {
+        return start >= 0 && count <= memory.length - start;
+    }
+    
+    /**
+     * Invalidates the decoded instructions covering any word in a range that
+     * has just been written.
+     */
+    private void invalidateRange(int start, int end) {
+        end = Math.min(end, codeSize);
+        for (int i = start; i < end; i++)
+            if (decodedWord[i]) invalidate(i);
+    }
+    
+    private void clearBlock(int start, int count) {
+        if (count <= 0) return;
+        if (!inRange(start, count)) {
+            for (int i = 0; i < count; i++)
+                setMemory(0, start + i);
+            return;
+        }
+        Arrays.fill(memory, start, start + count, 0);
+        invalidateRange(start, start + count);
+    }
+    
+    /**
+     * Copies a block one word at a time from the front, as SAP always has. If
+     * the destination starts inside the source, the first dest - start words
+     * are repeated, so they are copied once per repetition.
+     */
+    private void moveBlock(int start, int dest, int count) {
+        if (count <= 0) return;
+        if (!inRange(start, count) || !inRange(dest, count)) {
+            for (int i = 0; i < count; i++)
+                setMemory(getMemory(start + i), dest + i);
+            return;
+        }
+        if (dest <= start || dest >= start + count) {
+            System.arraycopy(memory, start, memory, dest, count);
+        } else {
+            int period = dest - start;
+            for (int i = 0; i < count; i += period)
+                System.arraycopy(memory, start, memory, dest + i,
+                        Math.min(period, count - i));
+        }
+        invalidateRange(dest, dest + count);
+    }
+    
+    private void printBlock(int start, int count) {
+        if (count <= 0) return;
+        if (!inRange(start, count)) {
+            for (int i = 0; i < count; i++)
+                out.print((char) getMemory(start + i));
+            return;
+        }
+        out.print(memory, start, count);
+    }
+    
+    /**
+     * Stores a line of input, one character per word.
+     */
+    private void storeLine(String line, int start) {
+        int count = line.length();
+        if (!inRange(start, count)) {
+            for (int i = 0; i < count; i++)
+                setMemory(line.charAt(i), start + i);
+            return;
+        }
+        for (int i = 0; i < count; i++)
+            memory[start + i] = line.charAt(i);
+        invalidateRange(start, start + count);
+    }
+    
     private void push (int val) {
-        boolean full = stack.isFull();
-        stackc = full ? 1 : 0;
-        if (!full) stack.push(val);
+        stackc = stack.push(val) ? 0 : 1;
     }
     
     private int pop () {
@@ -461,28 +1152,931 @@ public class VirtualMachine {
         return empty ? 0 : stack.pop();
     }
 
+    /**
+     * Runs the program one instruction at a time, checking breakpoints and
+     * watch variables around each one, until the debugger detaches.
+     */
+    private void debugRun() {
+        while (dbg) {
+            doCommand();
+            if ((pollRequested || instructionCount >= pollAt) && safepoint())
+                return;
+        }
+    }
+    
+    /**
+     * Runs the program one instruction at a time through interpret(), counting
+     * each one for the profiler, until it halts or a safepoint says to stop.
+     */
+    private void profileRun() {
+        Profiler profiler = this.profiler;
+        int[] memory = this.memory;
+        while (true) {
+            int at = pc;
+            boolean inMemory = at >= 0 && at < memory.length;
+            int command = inMemory ? memory[at] : -1;
+            instructionCount++;
+            if (inMemory) profiler.count(at, command);
+            interpret();
+            if (pc <= at) {
+                if (Profiler.isJump(command)) profiler.backwardJump(at, pc);
+                if ((pollRequested || instructionCount >= pollAt)
+                        && safepoint()) return;
+            }
+        }
+    }
+    
+    /**
+     * Handles whatever made the run loop stop at a safepoint. The instruction
+     * count and pc must be up to date.
+     * @return whether the run loop should return, because the debugger was
+     * attached or the slice is over
+     */
+    private boolean safepoint() {
+        if (pollRequested) {
+            pollRequested = false;
+            checkInterrupt();
+            if (attachRequested && !dbg) {
+                attach();
+                return true;
+            }
+        }
+        if (instructionCount >= limitEnd) {
+            out.println("Error: Program exceeded its limit of "
+                    + instructionLimit + " instructions");
+            throw new Halt();
+        }
+        if (timeLimit > 0 && System.nanoTime() - deadline >= 0) {
+            out.println("Error: Program ran for longer than " + timeLimit
+                    + " ms");
+            throw new Halt();
+        }
+        schedulePoll();
+        return instructionCount >= sliceEnd;
+    }
+    
+    /**
+     * Stops the program if interrupt() was called.
+     */
+    private void checkInterrupt() {
+        if (interruptRequested) {
+            interruptRequested = false;
+            throw new Halt();
+        }
+    }
+    
+    /**
+     * Sets pollAt to the next instruction count at which safepoint() has
+     * something to check.
+     */
+    private void schedulePoll() {
+        pollAt = Math.min(sliceEnd, limitEnd);
+        if (timeLimit > 0 && instructionCount < pollAt - POLL_INTERVAL)
+            pollAt = instructionCount + POLL_INTERVAL;
+    }
+    
+    /**
+     * Breaks into the debugger after attachDebugger() was called, loading the
+     * symbol table first. If it can't be loaded, the program keeps running
+     * without the debugger.
+     */
+    private void attach() {
+        attachRequested = false;
+        breakpoints.clear();
+        symTable.clear();
+        memWatch.clear();
+        regWatch.clear();
+        watch = false;
+        if (!loadSymbols(programName)) return;
+        dbg = true;
+        debugPrompt();
+    }
+
     private void doCommand() {
-        int start, dest, count; // for block operations
-        if (dbg && breakpoints.contains(pc)) debugPrompt();
+        if (breakpoints.contains(pc)) debugPrompt();
+        if (!dbg) return; // detached at the breakpoint
         Hashtable<Integer, Integer> memWatchVals = null, regWatchVals = null;
-        boolean broken = false;
-        if (dbg && watch) {
+        if (watch) {
             memWatchVals = new Hashtable<Integer, Integer>(memWatch.size(), 1);
             regWatchVals = new Hashtable<Integer, Integer>(regWatch.size(), 1);
             Iterator<Integer> memPoints = memWatch.iterator(),
                     regPoints = regWatch.iterator();
             while (memPoints.hasNext()) {
                 int pt = memPoints.next();
-                memWatchVals.put(pt, memory[pt]);
+                memWatchVals.put(pt, peek(pt));
             }
             while (regPoints.hasNext()) {
                 int pt = regPoints.next();
                 regWatchVals.put(pt, registers[pt]);
             }
         }
+        instructionCount++;
+        boolean broken = interpret();
+        if (dbg && watch && !broken) {
+            boolean changed = false;
+            Iterator<Integer> memPoints = memWatch.iterator(),
+                    regPoints = regWatch.iterator();
+            while (!changed && memPoints.hasNext()) {
+                int pt = memPoints.next();
+                changed = memWatchVals.get(pt) != peek(pt);
+            }
+            while (!changed && regPoints.hasNext()) {
+                int pt = regPoints.next();
+                changed = regWatchVals.get(pt) != registers[pt];
+            }
+            if (changed) debugPrompt();
+        }
+    }
+    
+    /*
+     * The following methods maintain and execute the decoded instruction
+     * cache.
+     */
+    
+    /**
+     * Decodes every instruction reachable from the entry point, following
+     * both fall-through and branch targets. Anything missed here (code reached
+     * only through ret or written at runtime) is decoded on first execution.
+     */
+    private void predecode() {
+        decoded = new int[codeSize * RECORD_SIZE];
+        for (int at = 0; at < codeSize; at++)
+            decoded[at * RECORD_SIZE] = UNDECODED;
+        decodedWord = new boolean[codeSize];
+        heat = new int[codeSize];
+        blocks = new CompiledBlock[4];
+        blockStart = new int[4];
+        blockEnd = new int[4];
+        numBlocks = 0;
+        int[] work = new int[2 * codeSize + 1], reached = new int[codeSize];
+        int pending = 0, numReached = 0;
+        work[pending++] = pc;
+        while (pending > 0) {
+            int at = work[--pending];
+            if (at < 0 || at >= codeSize
+                    || decoded[at * RECORD_SIZE] != UNDECODED) continue;
+            decode(at);
+            reached[numReached++] = at;
+            int record = at * RECORD_SIZE;
+            switch (decoded[record]) {
+                case SLOW:
+                    continue;
+                case 28: // jmp
+                    work[pending++] = decoded[record + 1];
+                    continue;
+                case 0: // halt
+                case 40: // ret
+                    continue;
+                case 29: // sojz
+                case 30: // sojnz
+                case 31: // aojz
+                case 32: // aojnz
+                    work[pending++] = decoded[record + 2];
+                    break;
+                case 36: // jmpn
+                case 37: // jmpz
+                case 38: // jmpp
+                case 39: // jsr
+                case 57: // jmpne
+                    work[pending++] = decoded[record + 1];
+                    break;
+            }
+            work[pending++] = decoded[record + NEXT];
+        }
+        for (int i = 0; i < numReached; i++)
+            fuse(reached[i]);
+    }
+    
+    /**
+     * Decodes the instruction at the given address into the cache. If the
+     * instruction has an invalid opcode or operand, it is marked SLOW so that
+     * interpret() reports the error exactly when it is executed.
+     * @param at the address of the instruction, less than codeSize
+     */
+    private void decode(int at) {
+        int record = at * RECORD_SIZE;
+        decoded[record] = SLOW;
+        decoded[record + NEXT] = at + 1;
+        decodedWord[at] = true;
+        int[] paramTypes = getParamTypes(memory[at]);
+        if (paramTypes == null) return;
+        int next = at + 1 + paramTypes.length;
+        if (next > codeSize) return;
+        for (int i = 0; i < paramTypes.length; i++) {
+            int operand = memory[at + 1 + i];
+            switch (paramTypes[i]) {
+                case REGISTER:
+                case INDIRECT:
+                    if (operand < 0 || operand >= registers.length) return;
+                    break;
+                case LABEL:
+                    if (isMemoryOperand(memory[at])
+                            && (operand < 0 || operand >= memory.length))
+                        return;
+                    break;
+            }
+        }
+        decoded[record] = memory[at];
+        for (int i = 0; i < paramTypes.length; i++)
+            decoded[record + 1 + i] = memory[at + 1 + i];
+        decoded[record + NEXT] = next;
+        for (int i = at; i < next; i++)
+            decodedWord[i] = true;
+    }
+    
+    /**
+     * Fuses the decoded instruction at the given address with the ones after
+     * it, if they form one of the sequences that have a superinstruction.
+     * @param at an address less than codeSize
+     */
+    private void fuse(int at) {
+        int record = at * RECORD_SIZE;
+        int second = decoded[record + NEXT], third, op, fused;
+        switch (decoded[record]) {
+            case 33: // cmpir
+            case 34: // cmprr
+            case 35: // cmpmr
+                switch (plainOp(second)) {
+                    case 36: // jmpn
+                        fused = CMPIR_JMPN;
+                        break;
+                    case 37: // jmpz
+                        fused = CMPIR_JMPZ;
+                        break;
+                    case 38: // jmpp
+                        fused = CMPIR_JMPP;
+                        break;
+                    case 57: // jmpne
+                        fused = CMPIR_JMPNE;
+                        break;
+                    default:
+                        return;
+                }
+                fused += 4 * (decoded[record] - 33);
+                decoded[record + 3] = memory[second + 1];
+                decoded[record + NEXT] = second + 2;
+                break;
+            case 12: // addir
+                op = plainOp(second);
+                if ((op != 33 && op != 35)
+                        || memory[second + 2] != decoded[record + 2])
+                    return;
+                third = second + 3;
+                switch (plainOp(third)) {
+                    case 36: // jmpn
+                        fused = op == 33 ? ADDIR_CMPIR_JMPN : ADDIR_CMPMR_JMPN;
+                        break;
+                    case 57: // jmpne
+                        fused = op == 33 ? ADDIR_CMPIR_JMPNE
+                                : ADDIR_CMPMR_JMPNE;
+                        break;
+                    default:
+                        return;
+                }
+                decoded[record + 3] = memory[second + 1];
+                decoded[record + 4] = memory[third + 1];
+                decoded[record + NEXT] = third + 2;
+                break;
+            case 9: // movxr
+                if (plainOp(second) != 12) return;
+                fused = MOVXR_ADDIR;
+                decoded[record + 3] = memory[second + 1];
+                decoded[record + 4] = memory[second + 2];
+                decoded[record + NEXT] = second + 3;
+                break;
+            case 10: // movar
+                if (plainOp(second) != 13
+                        || memory[second + 2] != decoded[record + 2])
+                    return;
+                third = second + 3;
+                op = plainOp(third);
+                if (op == 9 && memory[third + 1] == decoded[record + 2]) {
+                    fused = MOVAR_ADDRR_MOVXR;
+                    decoded[record + 4] = memory[third + 2];
+                } else if (op == 53
+                        && memory[third + 2] == decoded[record + 2]) {
+                    fused = MOVAR_ADDRR_MOVRX;
+                    decoded[record + 4] = memory[third + 1];
+                } else {
+                    return;
+                }
+                decoded[record + 3] = memory[second + 1];
+                decoded[record + NEXT] = third + 3;
+                break;
+            default:
+                return;
+        }
+        decoded[record] = fused;
+    }
+    
+    /**
+     * Returns the opcode of the instruction at the given address, decoding it
+     * if necessary, or -1 if the instruction is outside the code or has an
+     * invalid opcode or operand.
+     */
+    private int plainOp(int at) {
+        if (at >= codeSize) return -1;
+        if (decoded[at * RECORD_SIZE] == UNDECODED) decode(at);
+        return decoded[at * RECORD_SIZE] == SLOW ? -1 : memory[at];
+    }
+    
+    /**
+     * Checks whether a command's LABEL parameter is accessed as memory (as
+     * opposed to being a jump target).
+     */
+    private static boolean isMemoryOperand(int command) {
+        switch (command) {
+            case 3: // clrm
+            case 7: // movrm
+            case 8: // movmr
+            case 14: // addmr
+            case 18: // submr
+            case 22: // mulmr
+            case 26: // divmr
+            case 35: // cmpmr
+            case 51: // readln
+            case 55: // outs
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Drops every decoded instruction that covers the given address. Must be
+     * called whenever a word covered by a decoded instruction is written.
+     * @param index the address that was written, less than codeSize
+     */
+    private void invalidate(int index) {
+        for (int at = Math.max(0, index - MAX_RECORD_LENGTH + 1);
+                at <= index; at++)
+            if (decoded[at * RECORD_SIZE] != UNDECODED
+                    && decoded[at * RECORD_SIZE + NEXT] > index)
+                decoded[at * RECORD_SIZE] = UNDECODED;
+        for (int i = 0; i < numBlocks; i++)
+            if (blocks[i] != null
+                    && blockStart[i] <= index && index < blockEnd[i]) {
+                blocks[i] = null;
+                decoded[blockStart[i] * RECORD_SIZE] = UNDECODED;
+            }
+        decodedWord[index] = false;
+    }
+    
+    /**
+     * Compiles the code starting at the given address, as far as it can be
+     * compiled, and installs the block in the decoded cache.
+     * @param entry the address at which the block starts, less than codeSize
+     */
+    private void compile(int entry) {
+        BlockCompiler compiler = new BlockCompiler(registers.length, codeSize);
+        int at = entry;
+        while (at < codeSize) {
+            int record = at * RECORD_SIZE;
+            if (decoded[record] == UNDECODED || decoded[record] >= FUSED)
+                decode(at); // blocks are compiled one instruction at a time
+            int op = decoded[record] == COMPILED ? memory[at] : decoded[record];
+            if (!compiler.add(at, op, decoded[record + 1],
+                    decoded[record + 2], decoded[record + NEXT]))
+                break;
+            at = decoded[record + NEXT];
+        }
+        CompiledBlock block = compiler.compile();
+        if (block == null) {
+            heat[entry] = Integer.MIN_VALUE; // don't try again
+            return;
+        }
+        if (numBlocks == blocks.length) {
+            blocks = Arrays.copyOf(blocks, numBlocks * 2);
+            blockStart = Arrays.copyOf(blockStart, numBlocks * 2);
+            blockEnd = Arrays.copyOf(blockEnd, numBlocks * 2);
+        }
+        blocks[numBlocks] = block;
+        blockStart[numBlocks] = entry;
+        blockEnd[numBlocks] = compiler.end();
+        decoded[entry * RECORD_SIZE] = COMPILED;
+        decoded[entry * RECORD_SIZE + 3] = numBlocks++;
+    }
+    
+    /**
+     * Runs the program from the decoded cache, with no debugging hooks, until
+     * it halts or a safepoint says to stop. Instructions that the cache
+     * can't represent go through interpret().
+     */
+    private void run() {
+        int[] registers = this.registers;
+        int codeSize = this.codeSize;
+        boolean compile = compiling;
+        int pc = this.pc;
+        long executed = 0;
+        try {
+            while (true) {
+                int at = pc;
+                executed++;
+                if (at < 0 || at >= codeSize) {
+                    if (mustWait(at)) {
+                        executed--;
+                        return;
+                    }
+                    instructionCount += executed;
+                    executed = 0;
+                    this.pc = pc;
+                    interpret();
+                    pc = this.pc;
+                    if ((pollRequested || instructionCount >= pollAt)
+                            && safepoint()) return;
+                    continue;
+                }
+                int record = at * RECORD_SIZE;
+                if (decoded[record] == UNDECODED) {
+                    decode(at);
+                    fuse(at);
+                }
+                int[] decoded = this.decoded;
+                int a = decoded[record + 1], b = decoded[record + 2];
+                pc = decoded[record + NEXT];
+                switch (decoded[record]) {
+                    case SLOW:
+                        if (mustWait(at)) {
+                            executed--;
+                            return;
+                        }
+                        instructionCount += executed;
+                        executed = 0;
+                        this.pc = at;
+                        interpret();
+                        pc = this.pc;
+                        break;
+                    case COMPILED:
+                        blockState[0] = compare;
+                        blockExecuted[0] = Math.min(POLL_INTERVAL,
+                                pollAt - instructionCount - executed);
+                        pc = blocks[decoded[record + 3]].run(registers, memory,
+                                blockState, decodedWord, blockExecuted);
+                        compare = blockState[0];
+                        executed += blockExecuted[0] - 1;
+                        if (pc == at) {
+                            // the first instruction needs interpret()
+                            if (mustWait(at)) {
+                                this.pc = at;
+                                return;
+                            }
+                            instructionCount += executed + 1;
+                            executed = 0;
+                            this.pc = at;
+                            interpret();
+                            pc = this.pc;
+                        }
+                        break;
+                    case 0: // halt
+                        halted = true;
+                        throw new Halt();
+                    case 1: // clrr
+                        registers[a] = 0;
+                        break;
+                    case 2: // clrx
+                        setMemory(0, registers[a]);
+                        break;
+                    case 3: // clrm
+                        setMemory(0, a);
+                        break;
+                    case 4: // clrb
+                        clearBlock(registers[a], registers[b]);
+                        break;
+                    case 5: // movir
+                        registers[b] = a;
+                        break;
+                    case 6: // movrr
+                        registers[b] = registers[a];
+                        break;
+                    case 7: // movrm
+                        setMemory(registers[a], b);
+                        break;
+                    case 8: // movmr
+                        registers[b] = memory[a];
+                        break;
+                    case 9: // movxr
+                        registers[b] = getMemory(registers[a]);
+                        break;
+                    case 10: // movar
+                        registers[b] = a;
+                        break;
+                    case 11: // movb
+                        moveBlock(registers[a], registers[b],
+                                registers[decoded[record + 3]]);
+                        break;
+                    case 12: // addir
+                        registers[b] += a;
+                        break;
+                    case 13: // addrr
+                        registers[b] += registers[a];
+                        break;
+                    case 14: // addmr
+                        registers[b] += memory[a];
+                        break;
+                    case 15: // addxr
+                        registers[b] += getMemory(registers[a]);
+                        break;
+                    case 16: // subir
+                        registers[b] -= a;
+                        break;
+                    case 17: // subrr
+                        registers[b] -= registers[a];
+                        break;
+                    case 18: // submr
+                        registers[b] -= memory[a];
+                        break;
+                    case 19: // subxr
+                        registers[b] -= getMemory(registers[a]);
+                        break;
+                    case 20: // mulir
+                        registers[b] *= a;
+                        break;
+                    case 21: // mulrr
+                        registers[b] *= registers[a];
+                        break;
+                    case 22: // mulmr
+                        registers[b] *= memory[a];
+                        break;
+                    case 23: // mulxr
+                        registers[b] *= getMemory(registers[a]);
+                        break;
+                    case 24: // divir
+                        divide(a, b);
+                        break;
+                    case 25: // divrr
+                        divide(registers[a], b);
+                        break;
+                    case 26: // divmr
+                        divide(memory[a], b);
+                        break;
+                    case 27: // divxr
+                        divide(getMemory(registers[a]), b);
+                        break;
+                    case 28: // jmp
+                        pc = a;
+                        break;
+                    case 29: // sojz
+                        if (--registers[a] == 0) pc = b;
+                        break;
+                    case 30: // sojnz
+                        if (--registers[a] != 0) pc = b;
+                        break;
+                    case 31: // aojz
+                        if (++registers[a] == 0) pc = b;
+                        break;
+                    case 32: // aojnz
+                        if (++registers[a] != 0) pc = b;
+                        break;
+                    case 33: // cmpir
+                        compare = registers[b] - a;
+                        break;
+                    case 34: // cmprr
+                        compare = registers[b] - registers[a];
+                        break;
+                    case 35: // cmpmr
+                        compare = registers[b] - memory[a];
+                        break;
+                    case 36: // jmpn
+                        if (compare < 0) pc = a;
+                        break;
+                    case 37: // jmpz
+                        if (compare == 0) pc = a;
+                        break;
+                    case 38: // jmpp
+                        if (compare > 0) pc = a;
+                        break;
+                    case 39: // jsr
+                        stackc = stack.pushFrame(pc, registers, 5, 10) ? 0 : 1;
+                        pc = a;
+                        break;
+                    case 40: // ret
+                        stackc = stack.size() > 5 ? 0 : 2;
+                        pc = stack.popFrame(registers, 5, 10);
+                        break;
+                    case 41: // push
+                        push(registers[a]);
+                        break;
+                    case 42: // pop
+                        registers[a] = pop();
+                        break;
+                    case 43: // stackc
+                        registers[a] = stackc;
+                        break;
+                    case 44: // outci
+                        out.print((char) a);
+                        break;
+                    case 45: // outcr
+                        out.print((char) registers[a]);
+                        break;
+                    case 46: // outcx
+                        out.print((char) getMemory(registers[a]));
+                        break;
+                    case 47: // outcb
+                        printBlock(registers[a], registers[b]);
+                        break;
+                    case 48: // readi
+                        if (mustWait(at)) {
+                            executed--;
+                            return;
+                        }
+                        instructionCount += executed;
+                        executed = 0;
+                        out.flush();
+                        try {
+                            int value = nextInt();
+                            registers[a] = value;
+                            registers[b] = 0;
+                        } catch (InputMismatchException exc) {
+                            registers[b] = 1;
+                        }
+                        break;
+                    case 49: // printi
+                        out.print(registers[a]);
+                        break;
+                    case 50: // readc
+                        if (mustWait(at)) {
+                            executed--;
+                            return;
+                        }
+                        instructionCount += executed;
+                        executed = 0;
+                        out.flush();
+                        try {
+                            registers[a] = nextChar();
+                        } catch (IOException exc) {
+                        }
+                        break;
+                    case 51: // readln
+                        if (mustWait(at)) {
+                            executed--;
+                            return;
+                        }
+                        instructionCount += executed;
+                        executed = 0;
+                        out.flush();
+                        String line = nextLine();
+                        storeLine(line, a);
+                        registers[b] = line.length();
+                        break;
+                    case 52: // brk
+                        if (snapshotName != null) {
+                            this.pc = pc;
+                            breakWithoutDebugger();
+                        }
+                        break;
+                    case 53: // movrx
+                        setMemory(registers[a], registers[b]);
+                        break;
+                    case 54: // movxx
+                        setMemory(getMemory(registers[a]), registers[b]);
+                        break;
+                    case 55: // outs
+                        printBlock(a + 1, memory[a]);
+                        break;
+                    case 56: // nop
+                        break;
+                    case 57: // jmpne
+                        if (compare != 0) pc = a;
+                        break;
+                    case CMPIR_JMPN:
+                        executed++;
+                        if ((compare = registers[b] - a) < 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPIR_JMPZ:
+                        executed++;
+                        if ((compare = registers[b] - a) == 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPIR_JMPP:
+                        executed++;
+                        if ((compare = registers[b] - a) > 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPIR_JMPNE:
+                        executed++;
+                        if ((compare = registers[b] - a) != 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPRR_JMPN:
+                        executed++;
+                        if ((compare = registers[b] - registers[a]) < 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPRR_JMPZ:
+                        executed++;
+                        if ((compare = registers[b] - registers[a]) == 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPRR_JMPP:
+                        executed++;
+                        if ((compare = registers[b] - registers[a]) > 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPRR_JMPNE:
+                        executed++;
+                        if ((compare = registers[b] - registers[a]) != 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPMR_JMPN:
+                        executed++;
+                        if ((compare = registers[b] - memory[a]) < 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPMR_JMPZ:
+                        executed++;
+                        if ((compare = registers[b] - memory[a]) == 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPMR_JMPP:
+                        executed++;
+                        if ((compare = registers[b] - memory[a]) > 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case CMPMR_JMPNE:
+                        executed++;
+                        if ((compare = registers[b] - memory[a]) != 0)
+                            pc = decoded[record + 3];
+                        break;
+                    case ADDIR_CMPIR_JMPN:
+                        executed += 2;
+                        registers[b] += a;
+                        if ((compare = registers[b] - decoded[record + 3]) < 0)
+                            pc = decoded[record + 4];
+                        break;
+                    case ADDIR_CMPIR_JMPNE:
+                        executed += 2;
+                        registers[b] += a;
+                        if ((compare = registers[b] - decoded[record + 3]) != 0)
+                            pc = decoded[record + 4];
+                        break;
+                    case ADDIR_CMPMR_JMPN:
+                        executed += 2;
+                        registers[b] += a;
+                        compare = registers[b] - memory[decoded[record + 3]];
+                        if (compare < 0) pc = decoded[record + 4];
+                        break;
+                    case ADDIR_CMPMR_JMPNE:
+                        executed += 2;
+                        registers[b] += a;
+                        compare = registers[b] - memory[decoded[record + 3]];
+                        if (compare != 0) pc = decoded[record + 4];
+                        break;
+                    case MOVXR_ADDIR:
+                        registers[b] = getMemory(registers[a]);
+                        executed++;
+                        registers[decoded[record + 4]] += decoded[record + 3];
+                        break;
+                    case MOVAR_ADDRR_MOVXR:
+                        executed += 2;
+                        registers[b] = a;
+                        registers[b] += registers[decoded[record + 3]];
+                        registers[decoded[record + 4]] =
+                                getMemory(registers[b]);
+                        break;
+                    case MOVAR_ADDRR_MOVRX:
+                        executed += 2;
+                        registers[b] = a;
+                        registers[b] += registers[decoded[record + 3]];
+                        setMemory(registers[decoded[record + 4]],
+                                registers[b]);
+                        break;
+                }
+                if (pc <= at) {
+                    if (pollRequested || instructionCount + executed
+                            >= pollAt) {
+                        this.pc = pc;
+                        instructionCount += executed;
+                        executed = 0;
+                        if (safepoint()) return;
+                    }
+                    if (pc >= 0 && compile && ++heat[pc] == COMPILE_THRESHOLD)
+                        compile(pc);
+                }
+            }
+        } finally {
+            instructionCount += executed;
+        }
+    }
+    
+    /**
+     * Checks whether the instruction at the given address reads input that
+     * the input queue doesn't hold yet. If so, the program is left about to
+     * execute it, so that run() can return and try again later.
+     * @return whether run() should return
+     */
+    private boolean mustWait(int at) {
+        if (queue == null || at < 0 || at >= memorySize
+                || queue.ready(getMemory(at))) return false;
+        pc = at;
+        blocked = true;
+        return true;
+    }
+    
+    /*
+     * The read instructions get their input through nextInt, nextChar, and
+     * nextLine, which record it or replay it when asked to. The instruction
+     * count must be up to date when they are called.
+     */
+    
+    private int nextInt() {
+        checkInterrupt();
+        if (replay != null) {
+            int kind = replayed(InputLog.INT, InputLog.MISMATCH);
+            int value = replay.nextValue();
+            if (kind == InputLog.MISMATCH) throw new InputMismatchException();
+            if (kind == InputLog.END) throw new NoSuchElementException();
+            return value;
+        }
+        if (recording == null) return input.readInt();
+        try {
+            int value = input.readInt();
+            recording.add(instructionCount, InputLog.INT, value, null);
+            return value;
+        } catch (InputMismatchException exc) {
+            recording.add(instructionCount, InputLog.MISMATCH, 0, null);
+            throw exc;
+        } catch (NoSuchElementException exc) {
+            recording.add(instructionCount, InputLog.END, 0, null);
+            throw exc;
+        }
+    }
+    
+    private int nextChar() throws IOException {
+        checkInterrupt();
+        if (replay != null) {
+            int kind = replayed(InputLog.CHAR, InputLog.CHAR_ERROR);
+            int value = replay.nextValue();
+            if (kind == InputLog.CHAR_ERROR) throw new IOException();
+            return value;
+        }
+        if (recording == null) return input.readChar();
+        try {
+            int value = input.readChar();
+            recording.add(instructionCount, InputLog.CHAR, value, null);
+            return value;
+        } catch (IOException exc) {
+            recording.add(instructionCount, InputLog.CHAR_ERROR, 0, null);
+            throw exc;
+        }
+    }
+    
+    private String nextLine() {
+        checkInterrupt();
+        if (replay != null) {
+            if (replayed(InputLog.LINE, InputLog.END) == InputLog.END) {
+                replay.nextValue();
+                throw new NoSuchElementException();
+            }
+            return replay.nextLine();
+        }
+        if (recording == null) return input.readLine();
+        try {
+            String line = input.readLine();
+            recording.add(instructionCount, InputLog.LINE, 0, line);
+            return line;
+        } catch (NoSuchElementException exc) {
+            recording.add(instructionCount, InputLog.END, 0, null);
+            throw exc;
+        }
+    }
+    
+    /**
+     * Checks that the next event in the log being replayed is one of the
+     * given kinds, or END, and was read at the current instruction count.
+     * Prints an error message and halts if not.
+     * @return the kind of the event
+     */
+    private int replayed(int kind, int otherKind) {
+        if (!replay.hasNext()) {
+            out.println("Error: Input log ended at instruction "
+                    + instructionCount);
+            throw new Halt();
+        }
+        int next = replay.nextKind();
+        if (replay.nextCount() != instructionCount || next != kind
+                && next != otherKind && (next != InputLog.END
+                || kind == InputLog.CHAR)) {
+            out.println("Error: Input log doesn't match the program at "
+                    + "instruction " + instructionCount);
+            throw new Halt();
+        }
+        return next;
+    }
+    
+    /**
+     * Fetches, decodes, and executes one instruction directly from memory.
+     * Used for instructions that the decoded cache can't represent, such as
+     * invalid opcodes or out-of-range operands.
+     * @return whether the instruction broke into the debugger
+     */
+    private boolean interpret() {
+        int start, dest, count; // for block operations
+        boolean broken = false;
         int command = nextMem();
         switch (command) {
             case 0: // halt
+                halted = true;
                 throw new Halt();
             case 1: // clrr
                 setRegister(0);
@@ -495,9 +2089,7 @@ public class VirtualMachine {
                 break;
             case 4: // clrb
                 start = getRegister();
-                count = getRegister();
-                for (int i = 0; i < count; i++)
-                    setMemory(0, count + i);
+                clearBlock(start, getRegister());
                 break;
             case 5: // movir
                 setRegister(nextMem());
@@ -520,9 +2112,7 @@ public class VirtualMachine {
             case 11: // movb
                 start = getRegister();
                 dest = getRegister();
-                count = getRegister();
-                for (int i = 0; i < count; i++)
-                    setMemory(getMemory(start + i), dest + i);
+                moveBlock(start, dest, getRegister());
                 break;
             case 12: // addir
                 add(nextMem());
@@ -606,15 +2196,12 @@ public class VirtualMachine {
                 jumpIf(compare > 0);
                 break;
             case 39: // jsr
-                push(pc + 1);
-                for (int i = 5; i <= 9; i++)
-                    push(registers[i]);
+                stackc = stack.pushFrame(pc + 1, registers, 5, 10) ? 0 : 1;
                 pc = nextMem();
                 break;
             case 40: // ret
-                for (int i = 9; i >= 5; i--)
-                    registers[i] = pop();
-                pc = pop();
+                stackc = stack.size() > 5 ? 0 : 2;
+                pc = stack.popFrame(registers, 5, 10);
                 break;
             case 41: // push
                 push(getRegister());
@@ -626,23 +2213,22 @@ public class VirtualMachine {
                 setRegister(stackc);
                 break;
             case 44: // outci
-                System.out.print((char) nextMem());
+                out.print((char) nextMem());
                 break;
             case 45: // outcr
-                System.out.print((char) getRegister());
+                out.print((char) getRegister());
                 break;
             case 46: // outcx
-                System.out.print((char) getIndirect());
+                out.print((char) getIndirect());
                 break;
             case 47: // outcb
                 start = getRegister();
-                count = getRegister();
-                for (int i = 0; i < count; i++)
-                    System.out.print((char) getMemory(start + i));
+                printBlock(start, getRegister());
                 break;
             case 48: // readi
+                out.flush();
                 try {
-                    setRegister(scan.nextInt());
+                    setRegister(nextInt());
                     setRegister(0);
                 } catch (InputMismatchException exc) {
                     pc++;
@@ -650,27 +2236,29 @@ public class VirtualMachine {
                 }
                 break;
             case 49: // printi
-                System.out.print(getRegister());
+                out.print(getRegister());
                 break;
             case 50: // readc
+                out.flush();
                 try {
-                    setRegister(System.in.read());
+                    setRegister(nextChar());
                 } catch (IOException exc) {
                     pc++;
                 }
                 break;
             case 51: // readln
-                String line = scan.nextLine();
+                out.flush();
+                String line = nextLine();
                 start = nextMem();
-                count = line.length();
-                for (int i = 0; i < count; i++)
-                    setMemory(line.charAt(i), start + i);
-                setRegister(count);
+                storeLine(line, start);
+                setRegister(line.length());
                 break;
             case 52: // brk
                 if (dbg) {
                     broken = true;
                     debugPrompt();
+                } else {
+                    breakWithoutDebugger();
                 }
                     break;
             case 53: // movrx
@@ -681,9 +2269,8 @@ public class VirtualMachine {
                 break;
             case 55: // outs
                 start = nextMem();
-                count = getMemory(start++);
-                for (int i = 0; i < count; i++)
-                    System.out.print((char) getMemory(start + i));
+                count = getMemory(start);
+                printBlock(start + 1, count);
                 break;
             case 56: // nop
                 break;
@@ -691,22 +2278,9 @@ public class VirtualMachine {
                 jumpIf(compare != 0);
                 break;
             default:
-                System.out.println("Error: Invalid command " + command);
+                out.println("Error: Invalid command " + command);
                 throw new Halt();
         }
-        if (dbg && watch && !broken) {
-            boolean changed = false;
-            Iterator<Integer> memPoints = memWatch.iterator(),
-                    regPoints = regWatch.iterator();
-            while (!changed && memPoints.hasNext()) {
-                int pt = memPoints.next();
-                changed = memWatchVals.get(pt) != memory[pt];
-            }
-            while (!changed && regPoints.hasNext()) {
-                int pt = regPoints.next();
-                changed = regWatchVals.get(pt) != registers[pt];
-            }
-            if (changed) debugPrompt();
-        }
+        return broken;
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,8 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.*;
+import java.util.InputMismatchException;
+import java.util.concurrent.CancellationException;
 import javax.swing.*;
 import javax.swing.text.*;
 
@@ -11,7 +13,8 @@ import javax.swing.text.*;
  * A text console that can be displayed in a window.
  * @author Ari Zerner
  */
-public final class Console extends JComponent {
+public final class Console extends JComponent
+        implements sap.InputSource, sap.OutputSink {
 
     private ConsoleTextArea text;
     public final PrintStream out;
@@ -56,10 +59,23 @@ public final class Console extends JComponent {
         canSetLM = false;
     }
 
+    /**
+     * Writes characters to the console with a single insertion, which is much
+     * faster than writing them one at a time through out.
+     * @param chars the array holding the characters
+     * @param offset the index of the first character to write
+     * @param length the number of characters to write
+     */
+    public void write(char[] chars, int offset, int length) {
+        text.write(new String(chars, offset, length));
+    }
+
     /**
      * Reads a line of input from the console. Calls String.trim() prior to
      * returning.
      * @return the input line
+     * @throws CancellationException if the thread is interrupted while
+     * waiting
      */
     public String getInputLine() {
         return text.getInputLine().trim();
@@ -69,11 +85,45 @@ public final class Console extends JComponent {
      * Reads a character of input from the console. Returns the same as
      * getInputLine().charAt(0), but doesn't skip past the rest of the line.
      * @return the input character
+     * @throws CancellationException if the thread is interrupted while
+     * waiting
      */
     public char getInputChar() {
         return text.getInputChar();
     }
 
+    /**
+     * Reads a line of input from the console as an int, for the readi
+     * instruction. The whole line is used up even if it isn't an int.
+     * @return the int
+     * @throws InputMismatchException if the line isn't an int
+     */
+    public int readInt() {
+        try {
+            return Integer.parseInt(getInputLine());
+        } catch (NumberFormatException exc) {
+            throw new InputMismatchException(exc.getMessage());
+        }
+    }
+
+    /**
+     * Reads a character of input from the console, for the readc
+     * instruction.
+     * @return the character
+     */
+    public int readChar() {
+        return getInputChar();
+    }
+
+    /**
+     * Reads a line of input from the console, for the readln instruction and
+     * the debugger.
+     * @return the line, trimmed
+     */
+    public String readLine() {
+        return getInputLine();
+    }
+
     /**
      * Clears all text from this Console.
      */
@@ -173,7 +223,7 @@ public final class Console extends JComponent {
     private class ConsoleTextArea extends JTextArea implements KeyListener {
 
         private int lastOutput;
-        private String inputLine;
+        private volatile String inputLine; // set on the event thread
         private boolean canInput = true;
         public final InputStream in = new InputStream() {
 
@@ -186,9 +236,7 @@ public final class Console extends JComponent {
 
             @Override
             public void write(int i) throws IOException {
-                insert("" + (char) i, lastOutput++);
-                setCaretPosition(Math.min(
-                        getCaretPosition() + 1, getDocument().getLength()));
+                ConsoleTextArea.this.write("" + (char) i);
             }
         });
 
@@ -197,8 +245,22 @@ public final class Console extends JComponent {
             addKeyListener(this);
         }
 
+        public void write(String s) {
+            insert(s, lastOutput);
+            lastOutput += s.length();
+            setCaretPosition(Math.min(
+                    getCaretPosition() + s.length(), getDocument().getLength()));
+        }
+
+        /**
+         * Waits until there is input, or until the waiting thread is
+         * interrupted, in which case it throws CancellationException.
+         */
         private void waitForInput() {
             while (inputLine == null || inputLine.isEmpty()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException();
+                }
                 Thread.yield();
             }
         }
@@ -3,6 +3,7 @@ package sap.ide;
 import java.awt.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import javax.swing.*;
 import javax.swing.filechooser.*;
 import javax.swing.undo.UndoManager;
@@ -30,8 +31,8 @@ import javax.swing.undo.UndoManager;
 public class Editor extends javax.swing.JFrame {
 
     private Thread vmRunning;
-    private VirtualMachine vm;
-    private sap.Assembler asm;
+    private sap.VirtualMachine vm;
+    private String assembledSource, assemblyError;
     private File txtFile, lstFile, symFile, binFile;
     private UndoManager um = new UndoManager();
     private double runDebugSplitLast, outListSplitLast;
@@ -71,18 +72,18 @@ public class Editor extends javax.swing.JFrame {
     public Editor(String fn) {
         initComponents();
         fn = removeExtension(fn);
-        vm = new VirtualMachine(10000, run, debug);
-        asm = new sap.Assembler();
+        vm = new sap.VirtualMachine(10000);
+        vm.setInput(run);
+        vm.setOutput(run);
+        vm.setDebugger(debug, debug);
         txtFile = new File(fn + ".txt");
         txt.load(txtFile);
         txt.getDocument().addUndoableEditListener(um);
         setTitle(removeExtension(txtFile.getName()));
-        asm.assembleFile(fileNameNoExtension(), null);
         lstFile = new File(fn + ".lst");
-        lst.load(lstFile);
         symFile = new File(fn + ".sym");
         binFile = new File(fn + ".bin");
-        bin.load(binFile);
+        assemble();
         setSplit(runDebugSplit, 0.5);
         outListSplit.setDividerLocation(0.5);
         setSplit(outListSplit, 1.0);
@@ -168,21 +169,54 @@ public class Editor extends javax.swing.JFrame {
         return saveAndAssemble(true);
     }
 
-    private boolean saveAndAssemble(boolean showErrMess) {
-        txt.save();
-        txt.isSaved();
-        asm.assembleFile(fileNameNoExtension(), null);
-        lst.load();
-        bin.load();
-        if (asm.wasError()) {
+    /**
+     * Assembles the source code in the text area, writes the assembled files,
+     * and shows the listing and the program. The source is assembled in
+     * memory, and the panes are filled from the result rather than by reading
+     * the files back; the program is shown in the old text format of .bin
+     * files. If the source hasn't changed since it was last assembled, and
+     * its files are still there, nothing is done again.
+     *
+     * @return an error message, or null if the program assembled
+     */
+    private String assemble() {
+        String source = txt.getText();
+        if (source.equals(assembledSource) && lstFile.exists()
+                && (assemblyError != null || binFile.exists())) {
+            return assemblyError;
+        }
+        assembledSource = null;
+        sap.AssemblyResult result = sap.Assembler.assemble(source);
+        lst.setText(result.getListing());
+        if (result.hasErrors()) {
             bin.setText("");
-            if (showErrMess) {
-                JOptionPane.showMessageDialog(this, asm.getErrorMess(),
-                        "Assembly Error!", JOptionPane.ERROR_MESSAGE);
-            }
+        } else {
+            bin.setText(result.asText());
+        }
+        try {
+            result.write(fileNameNoExtension());
+        } catch (IOException exc) {
+            return "Error creating one or more assembled files.";
+        }
+        int numErrors = result.getDiagnostics().size();
+        assemblyError = numErrors == 0 ? null : numErrors + " error"
+                + (numErrors == 1 ? "" : "s")
+                + " in program. See listing for details.";
+        assembledSource = source;
+        return assemblyError;
+    }
+
+    private boolean saveAndAssemble(boolean showErrMess) {
+        if (!txt.isSaved()) {
+            txt.save();
+        }
+        String errorMess = assemble();
+        if (errorMess != null && showErrMess) {
+            JOptionPane.showMessageDialog(this, errorMess,
+                    "Assembly Error!", JOptionPane.ERROR_MESSAGE);
         }
         info.updateInfo();
-        return !asm.wasError();
+        return errorMess == null;
     }
 
     private void saveAndAssembleAsNew() {
@@ -295,8 +329,13 @@ public class Editor extends javax.swing.JFrame {
             @Override
             public void run() {
                 startRunning(dbg);
-                vm.runBytecodeFile(fileNameNoExtension(), dbg);
-                stopRunning();
+                try {
+                    vm.runBytecodeFile(fileNameNoExtension(), dbg);
+                } catch (CancellationException exc) {
+                    // halted while waiting for input
+                } finally {
+                    stopRunning();
+                }
             }
         });
         vmRunning.setDaemon(true);
@@ -810,8 +849,8 @@ public class Editor extends javax.swing.JFrame {
 
     private void menu_run_haltActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menu_run_haltActionPerformed
         if (vmRunning != null) {
-            vmRunning.stop();
-            stopRunning();
+            vm.interrupt();
+            vmRunning.interrupt(); // in case it's waiting for input
         }
     }//GEN-LAST:event_menu_run_haltActionPerformed
 